@@ -0,0 +1,34 @@
+package ml.dent.app;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.Runner;
+
+/**
+ * Runs the benchmarks with the GC profiler always enabled, so every run reports the allocation rate per operation
+ * next to the throughput. Accepts the usual JMH command line options.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * The bounce server classes log through the Logger instance, which normally only exists once Main has started.
+     * Every benchmark calls this before touching server classes.
+     */
+    public static synchronized void initLogger() {
+        if (Logger.getInstance() == null) {
+            new Logger();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
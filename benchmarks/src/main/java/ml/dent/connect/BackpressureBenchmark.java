@@ -0,0 +1,57 @@
+package ml.dent.connect;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import ml.dent.app.BenchmarkRunner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks one member of a connection group overloaded and ready again, which pauses and resumes reading on every
+ * other member.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackpressureBenchmark {
+
+    @Param({"2", "8", "64"})
+    public int members;
+
+    private ConnectionManager connectionManager;
+    private EmbeddedChannel[] channels;
+    private Connection        slow;
+
+    @Setup
+    public void setup() {
+        BenchmarkRunner.initLogger();
+        ConnectionManager.setMaxConnections(members);
+        connectionManager = new ConnectionManager();
+
+        channels = new EmbeddedChannel[members];
+        for (int i = 0; i < members; i++) {
+            channels[i] = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+            Connection connection = new Connection(channels[i]);
+            connectionManager.register(connection);
+            connectionManager.joinChannel(connection, 0xac, () -> { });
+        }
+        slow = channels[0].attr(Connection.CONNECTION).get();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Benchmark
+    public void toggle() {
+        connectionManager.setOverloaded(slow);
+        connectionManager.setReady(slow);
+    }
+}
@@ -0,0 +1,74 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import ml.dent.app.BenchmarkRunner;
+import ml.dent.app.Main;
+import ml.dent.connect.ConnectionManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards one message from a member of a connection group to every other member, through
+ * {@code ServerHandler.channelRead}, {@code ConnectionManager.handleConnectionRead} and {@code ConnectionGroup.write}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForwardBenchmark {
+
+    @Param({"2", "8"})
+    public int members;
+
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    private EmbeddedChannel[] channels;
+    private ByteBuf           message;
+
+    @Setup
+    public void setup() {
+        BenchmarkRunner.initLogger();
+        ConnectionManager.setMaxConnections(members);
+        MainServer server = new MainServer(0);
+
+        channels = new EmbeddedChannel[members];
+        for (int i = 0; i < members; i++) {
+            channels[i] = new EmbeddedChannel(new HandshakeDecoder(server.getConnectionManager()), server.new ServerHandler());
+            channels[i].writeInbound(PooledByteBufAllocator.DEFAULT.directBuffer()
+                    .writeBytes((Main.getAuthString() + "00ac").getBytes(CharsetUtil.UTF_8)));
+            drain(channels[i]);
+        }
+        message = PooledByteBufAllocator.DEFAULT.directBuffer(size).writeZero(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        message.release();
+    }
+
+    @Benchmark
+    public void forward() {
+        channels[0].writeInbound(message.retainedDuplicate());
+        for (int i = 1; i < members; i++) {
+            drain(channels[i]);
+        }
+    }
+
+    private static void drain(EmbeddedChannel channel) {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import ml.dent.app.BenchmarkRunner;
+import ml.dent.app.Main;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts a connection and runs it through the handshake, with the auth string, channel number and first payload
+ * arriving in one packet or split over several.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    /**
+     * 1 sends everything in one packet, 3 splits the auth string in two and sends the channel number separately
+     */
+    @Param({"1", "3"})
+    public int segments;
+
+    @Param({"0", "64"})
+    public int payload;
+
+    private MainServer server;
+    private ByteBuf[]  packets;
+
+    @Setup
+    public void setup() {
+        BenchmarkRunner.initLogger();
+        server = new MainServer(0);
+
+        byte[] auth = Main.getAuthString().getBytes(CharsetUtil.UTF_8);
+        byte[] rest = new byte[4 + payload];
+        System.arraycopy("00ac".getBytes(CharsetUtil.UTF_8), 0, rest, 0, 4);
+
+        if (segments == 1) {
+            packets = new ByteBuf[]{packet(auth, 0, auth.length, rest)};
+        } else {
+            // auth string split in two, then the channel number with the payload
+            int half = auth.length / 2;
+            packets = new ByteBuf[]{packet(auth, 0, half, null), packet(auth, half, auth.length, null), packet(rest, 0, rest.length, null)};
+        }
+    }
+
+    private static ByteBuf packet(byte[] bytes, int from, int to, byte[] suffix) {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer();
+        buf.writeBytes(bytes, from, to - from);
+        if (suffix != null) {
+            buf.writeBytes(suffix);
+        }
+        return buf;
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ByteBuf packet : packets) {
+            packet.release();
+        }
+    }
+
+    @Benchmark
+    public boolean handshake() {
+        EmbeddedChannel channel = new EmbeddedChannel(new HandshakeDecoder(server.getConnectionManager()), server.new ServerHandler());
+        for (ByteBuf packet : packets) {
+            channel.writeInbound(packet.retainedDuplicate());
+        }
+        return channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,112 @@
+package ml.dent.app;
+
+import ml.dent.connect.ChannelStats;
+import ml.dent.connect.TrafficStats;
+import ml.dent.net.MainServer;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the busiest channels for the top command. Rates are computed from the difference between the counters of
+ * every group at two consecutive refreshes, so a refresh only reads per-group counters.
+ */
+class ChannelTop {
+
+    private static final String CLEAR_SCREEN = "\033[H\033[2J";
+
+    private MainServer server;
+    private int        rows;
+
+    /*
+     * Counters of every group at the previous refresh: bytes in, messages in, bytes out, messages out. Keyed by the
+     * counters themselves, so a channel that was emptied and joined again starts from zero.
+     */
+    private Map<TrafficStats, long[]> previous = new IdentityHashMap<>();
+    private long                      previousNanos;
+
+    ChannelTop(MainServer server, int rows) {
+        this.server = server;
+        this.rows = rows;
+        sample(server.getChannelStats());
+    }
+
+    String render() {
+        List<ChannelStats> channels = server.getChannelStats();
+        double seconds = (System.nanoTime() - previousNanos) / 1e9;
+        Map<TrafficStats, long[]> last = previous;
+        sample(channels);
+
+        List<Row> rates = new ArrayList<>();
+        double totalIn = 0;
+        double totalOut = 0;
+        for (ChannelStats channel : channels) {
+            long[] now = previous.get(channel.getTraffic());
+            long[] before = last.getOrDefault(channel.getTraffic(), new long[4]);
+            Row row = new Row(channel, (now[0] - before[0]) / seconds, (now[1] - before[1]) / seconds,
+                    (now[2] - before[2]) / seconds, (now[3] - before[3]) / seconds);
+            totalIn += row.bytesIn;
+            totalOut += row.bytesOut;
+            rates.add(row);
+        }
+        rates.sort((a, b) -> Double.compare(b.bytesIn + b.bytesOut, a.bytesIn + a.bytesOut));
+
+        StringBuilder sb = new StringBuilder(CLEAR_SCREEN);
+        sb.append(String.format("top - %s, %d active channels, in %s/s, out %s/s. Press enter to stop%n%n",
+                new SimpleDateFormat("HH:mm:ss").format(new Date()), channels.size(), formatBytes(totalIn), formatBytes(totalOut)));
+        sb.append(String.format("%8s %7s %-10s %11s %10s %11s %10s %10s%n",
+                "CHANNEL", "MEMBERS", "STATE", "IN/s", "IN msg/s", "OUT/s", "OUT msg/s", "QUEUED"));
+        for (int i = 0; i < rates.size() && i < rows; i++) {
+            Row row = rates.get(i);
+            ChannelStats channel = row.channel;
+            // Paused groups show how many members are overloaded
+            String state = channel.isPaused() ? "paused(" + channel.getOverloaded() + ")" : "ready";
+            sb.append(String.format("%8d %7d %-10s %11s %10.0f %11s %10.0f %10s%n",
+                    channel.getChannelNumber(), channel.getMembers(), state, formatBytes(row.bytesIn), row.messagesIn,
+                    formatBytes(row.bytesOut), row.messagesOut, formatBytes(channel.getQueued())));
+        }
+        return sb.toString();
+    }
+
+    private void sample(List<ChannelStats> channels) {
+        Map<TrafficStats, long[]> current = new IdentityHashMap<>();
+        for (ChannelStats channel : channels) {
+            TrafficStats traffic = channel.getTraffic();
+            current.put(traffic, new long[]{traffic.getBytesIn(), traffic.getMessagesIn(), traffic.getBytesOut(),
+                    traffic.getMessagesOut()});
+        }
+        previous = current;
+        previousNanos = System.nanoTime();
+    }
+
+    private static String formatBytes(double bytes) {
+        if (bytes < 1024) {
+            return String.format("%.0f B", bytes);
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024);
+        } else if (bytes < 1024 * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024 * 1024));
+        }
+        return String.format("%.1f GB", bytes / (1024 * 1024 * 1024));
+    }
+
+    private static class Row {
+        private ChannelStats channel;
+        private double       bytesIn;
+        private double       messagesIn;
+        private double       bytesOut;
+        private double       messagesOut;
+
+        Row(ChannelStats channel, double bytesIn, double messagesIn, double bytesOut, double messagesOut) {
+            this.channel = channel;
+            this.bytesIn = bytesIn;
+            this.messagesIn = messagesIn;
+            this.bytesOut = bytesOut;
+            this.messagesOut = messagesOut;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package ml.dent.app;
+
+/**
+ * An operator session on the control server. Command output is written to the session that issued the command, log
+ * messages are written to every open session.
+ */
+public interface Console {
+
+    /**
+     * Writes command output without blocking. Output is queued while the session is not accepting more data, and the
+     * session is closed once too much is queued, so a client that stops reading cannot hold up the command thread.
+     */
+    void print(String text);
+
+    /**
+     * Writes a log message without blocking. The message is dropped if the session is not accepting more data.
+     */
+    void log(String text);
+
+    boolean isOpen();
+
+    void close();
+}
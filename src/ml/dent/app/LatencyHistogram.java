@@ -0,0 +1,97 @@
+package ml.dent.app;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of nanosecond latencies that can be recorded into from any thread.
+ * <p>
+ * Every power of two is split into 64 linear buckets, so a reported value is within about 1.6% of the recorded one.
+ * Values above 2^40 ns (about 18 minutes) are clamped. Counts are never reset; interval figures are taken by
+ * subtracting an earlier {@link #snapshot()} from a later one.
+ */
+class LatencyHistogram {
+
+    private static final int  SUB_BITS    = 6;
+    private static final int  SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int  MAX_SHIFT   = 40 - SUB_BITS;
+    private static final long MAX_VALUE   = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0, Math.min(nanos, MAX_VALUE))));
+    }
+
+    public long[] snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * @return The bucket-wise difference of two snapshots
+     */
+    public static long[] minus(long[] later, long[] earlier) {
+        long[] diff = new long[later.length];
+        for (int i = 0; i < diff.length; i++) {
+            diff[i] = later[i] - earlier[i];
+        }
+        return diff;
+    }
+
+    public static long count(long[] snapshot) {
+        long total = 0;
+        for (long c : snapshot) {
+            total += c;
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return The latency in nanoseconds at the given percentile, or 0 if the snapshot is empty
+     */
+    public static long valueAt(long[] snapshot, double percentile) {
+        long total = count(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return valueOf(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    public static long max(long[] snapshot) {
+        for (int i = snapshot.length - 1; i >= 0; i--) {
+            if (snapshot[i] != 0) {
+                return valueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int indexOf(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return The midpoint of the values that fall into the given bucket
+     */
+    private static long valueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long low = (long) (index - shift * SUB_BUCKETS) << shift;
+        return low + (1L << shift) / 2;
+    }
+}
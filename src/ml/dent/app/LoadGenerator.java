@@ -0,0 +1,606 @@
+package ml.dent.app;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.FixedLengthFrameDecoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import ml.dent.net.Transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a running bounce server over loopback and reports throughput and round trip latency.
+ * <p>
+ * Usage: {@code LoadGenerator [--port N] [--auth STRING] [--pairs N] [--size BYTES] [--rate MSGS/S[,MSGS/S...]]
+ * [--window N] [--duration SECONDS] [--warmup SECONDS] [--channel-base N] [--echo] [--transport NAME] [--threads N]
+ * [--storm N]}
+ * <p>
+ * Every pair joins its own channel with the real handshake. The first connection of a pair sends fixed size messages
+ * stamped with a timestamp; the second connection writes every message straight back, so the latency covers two
+ * trips through the server. With --echo, a single connection is opened per channel and the server is expected to be
+ * running with -e so that it returns the messages itself.
+ * <p>
+ * A rate of 0 keeps --window messages in flight per pair, which measures the maximum throughput. With a fixed rate,
+ * latency is measured from the time a message was due to be sent rather than when it actually went out, so a server
+ * that falls behind shows up in the latency instead of lowering the offered load. Passing several comma separated
+ * rates runs them in order over the same connections and reports the first rate the server could not keep up with.
+ * <p>
+ * With --storm, no channels are loaded. Instead the given number of connections is opened in one burst, each is
+ * closed as soon as the server's version banner arrives, and the rate at which the server accepted them is reported.
+ * Start the server with --listeners and --backlog to compare accept setups.
+ */
+public class LoadGenerator {
+
+    private int       port        = 1111;
+    private String    host        = "127.0.0.1";
+    private String    auth        = "hi";
+    private int       pairs       = 1;
+    private int       size        = 64;
+    private long[]    rates       = {0};
+    private int       window      = 16;
+    private int       duration    = 10;
+    private int       warmup      = 2;
+    private int       channelBase = 0;
+    private boolean   echo        = false;
+    private Transport transport   = Transport.best();
+    private int       threads     = 0;
+    private int       storm       = 0;
+
+    private final LatencyHistogram latency  = new LatencyHistogram();
+    private final AtomicLong       sent     = new AtomicLong();
+    private final AtomicLong       received = new AtomicLong();
+    private final AtomicLong       accepted = new AtomicLong();
+    private final AtomicLong       refused  = new AtomicLong();
+
+    private final List<Sender> senders = new ArrayList<>();
+
+    private volatile boolean running;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    generator.port = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--host":
+                    generator.host = value(args, ++i);
+                    break;
+                case "--auth":
+                    generator.auth = value(args, ++i);
+                    break;
+                case "--pairs":
+                    generator.pairs = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--size":
+                    generator.size = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--rate":
+                    String[] split = value(args, ++i).split(",");
+                    generator.rates = new long[split.length];
+                    for (int j = 0; j < split.length; j++) {
+                        generator.rates[j] = Long.parseLong(split[j].trim());
+                    }
+                    break;
+                case "--window":
+                    generator.window = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--duration":
+                    generator.duration = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--warmup":
+                    generator.warmup = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--channel-base":
+                    generator.channelBase = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--echo":
+                    generator.echo = true;
+                    break;
+                case "--transport":
+                    generator.transport = Transport.fromName(value(args, ++i));
+                    if (generator.transport == null || !generator.transport.isAvailable()) {
+                        usage("Transport " + args[i] + " is not available");
+                    }
+                    break;
+                case "--threads":
+                    generator.threads = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--storm":
+                    generator.storm = Integer.parseInt(value(args, ++i));
+                    break;
+                default:
+                    usage("Unknown option " + args[i]);
+            }
+        }
+        if (generator.size < Long.BYTES) {
+            usage("Message size must be at least " + Long.BYTES + " bytes to hold the timestamp");
+        }
+        if (generator.pairs < 1 || generator.window < 1 || generator.duration < 1 || generator.warmup < 0) {
+            usage("Pairs, window and duration must be positive");
+        }
+        if (generator.storm < 0) {
+            usage("The storm size must not be negative");
+        }
+        try {
+            if (!InetAddress.getByName(generator.host).isLoopbackAddress()) {
+                usage("The load generator only runs against a loopback address");
+            }
+        } catch (UnknownHostException e) {
+            usage("Unknown host " + generator.host);
+        }
+        if (generator.storm > 0) {
+            generator.runStorm();
+        } else {
+            generator.run();
+        }
+    }
+
+    /**
+     * @return The value of the option before the given index
+     */
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            usage(args[i - 1] + " requires a value");
+        }
+        return args[i];
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: LoadGenerator [--port N] [--auth STRING] [--pairs N] [--size BYTES] [--rate MSGS/S[,MSGS/S...]] " +
+                "[--window N] [--duration SECONDS] [--warmup SECONDS] [--channel-base N] [--echo] [--transport NAME] [--threads N] " +
+                "[--storm N]");
+        System.exit(1);
+    }
+
+    private void run() throws InterruptedException {
+        EventLoopGroup group = transport.newEventLoopGroup(threads);
+        try {
+            connect(group);
+            System.out.println("Connected " + pairs + (echo ? " echo channels" : " pairs") + " over " + transport + ", " +
+                    size + " byte messages");
+
+            List<long[]> results = new ArrayList<>();
+            for (long rate : rates) {
+                results.add(runStep(rate));
+                Thread.sleep(500);
+            }
+            if (rates.length > 1) {
+                printSummary(results);
+            }
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    /**
+     * Opens --storm connections at once and prints how many of them the server accepted every second, until every
+     * connection was either greeted or failed, or nothing happened for 10 seconds
+     */
+    private void runStorm() throws InterruptedException {
+        EventLoopGroup group = transport.newEventLoopGroup(threads);
+        try {
+            // Reset instead of closed, so a storm leaves no client ports in TIME_WAIT behind
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(transport.channelClass())
+                    .option(ChannelOption.SO_LINGER, 0);
+            System.out.println("Opening " + storm + " connections at once over " + transport);
+            System.out.printf("%6s %12s %12s%n", "time", "accepted/s", "failed/s");
+
+            long start = System.nanoTime();
+            AtomicLong lastAccept = new AtomicLong(start);
+            for (int i = 0; i < storm; i++) {
+                bootstrap.clone().handler(new StormHandler(lastAccept)).connect(host, port).addListener(future -> {
+                    if (!future.isSuccess()) {
+                        refused.incrementAndGet();
+                    }
+                });
+            }
+
+            long lastAccepted = 0;
+            long lastRefused = 0;
+            int idle = 0;
+            long next = start;
+            for (int second = 1; lastAccepted + lastRefused < storm && idle < 10; second++) {
+                next += TimeUnit.SECONDS.toNanos(1);
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                long nowAccepted = accepted.get();
+                long nowRefused = refused.get();
+                System.out.printf("%5ds %12d %12d%n", second, nowAccepted - lastAccepted, nowRefused - lastRefused);
+                idle = nowAccepted + nowRefused == lastAccepted + lastRefused ? idle + 1 : 0;
+                lastAccepted = nowAccepted;
+                lastRefused = nowRefused;
+            }
+
+            double seconds = Math.max(lastAccept.get() - start, 1) / 1e9;
+            System.out.printf("Total: %d accepted in %.3f s, %.0f accepts/s, %d failed, %d unanswered%n", lastAccepted,
+                    seconds, lastAccepted / seconds, lastRefused, storm - lastAccepted - lastRefused);
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    private void connect(EventLoopGroup group) throws InterruptedException {
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.channelClass())
+                .option(ChannelOption.TCP_NODELAY, true);
+
+        List<Future<Void>> handshakes = new ArrayList<>();
+        for (int i = 0; i < pairs; i++) {
+            int channelNum = channelBase + i;
+            Sender sender = new Sender();
+            senders.add(sender);
+            handshakes.add(connect(bootstrap, channelNum, sender));
+            if (!echo) {
+                handshakes.add(connect(bootstrap, channelNum, new Reflector()));
+            }
+        }
+        for (Future<Void> handshake : handshakes) {
+            if (!handshake.await(10, TimeUnit.SECONDS) || !handshake.isSuccess()) {
+                Throwable cause = handshake.cause();
+                throw new IllegalStateException("Handshake failed: " + (cause == null ? "timed out" : cause.getMessage()));
+            }
+        }
+    }
+
+    private Future<Void> connect(Bootstrap bootstrap, int channelNum, ChannelInboundHandlerAdapter dataHandler) throws InterruptedException {
+        ClientHandshake handshake = new ClientHandshake(channelNum, dataHandler);
+        bootstrap.clone().handler(handshake).connect(host, port).sync();
+        return handshake.ready;
+    }
+
+    /**
+     * Runs one load step and prints a line per second.
+     *
+     * @return The offered rate, achieved rate, p50, p99, p999 and max latency of the measured part of the step
+     */
+    private long[] runStep(long rate) throws InterruptedException {
+        System.out.println();
+        System.out.println(rate == 0 ? "Unthrottled, " + window + " messages in flight per pair" : "Offered rate " + rate + " msgs/s");
+        System.out.printf("%6s %12s %12s %10s %10s %10s %10s %10s%n", "time", "sent/s", "recv/s", "MB/s", "p50 us", "p99 us", "p999 us", "max us");
+
+        running = true;
+        for (Sender sender : senders) {
+            sender.start(rate == 0 ? 0 : Math.max(1, rate / pairs));
+        }
+
+        long[] base = latency.snapshot();
+        long baseReceived = received.get();
+        long baseTime = System.nanoTime();
+        long[] last = base;
+        long lastSent = sent.get();
+        long lastReceived = baseReceived;
+        long next = System.nanoTime();
+        for (int second = 1; second <= warmup + duration; second++) {
+            next += TimeUnit.SECONDS.toNanos(1);
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+            long[] now = latency.snapshot();
+            long nowSent = sent.get();
+            long nowReceived = received.get();
+            long[] interval = LatencyHistogram.minus(now, last);
+            System.out.printf("%5ds %12d %12d %10.1f %10.1f %10.1f %10.1f %10.1f%s%n", second,
+                    nowSent - lastSent, nowReceived - lastReceived,
+                    (nowReceived - lastReceived) * (double) size / (1024 * 1024),
+                    micros(LatencyHistogram.valueAt(interval, 50)), micros(LatencyHistogram.valueAt(interval, 99)),
+                    micros(LatencyHistogram.valueAt(interval, 99.9)), micros(LatencyHistogram.max(interval)),
+                    second <= warmup ? "  (warmup)" : "");
+            if (second == warmup) {
+                base = now;
+                baseReceived = nowReceived;
+                baseTime = System.nanoTime();
+            }
+            last = now;
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+        }
+
+        running = false;
+        for (Sender sender : senders) {
+            sender.stop();
+        }
+
+        long[] measured = LatencyHistogram.minus(last, base);
+        double seconds = (System.nanoTime() - baseTime) / 1e9;
+        long achieved = (long) ((lastReceived - baseReceived) / seconds);
+        long[] result = {rate, achieved, LatencyHistogram.valueAt(measured, 50), LatencyHistogram.valueAt(measured, 99),
+                LatencyHistogram.valueAt(measured, 99.9), LatencyHistogram.max(measured)};
+        System.out.printf("Total: %d msgs/s, %.1f MB/s, p50 %.1f us, p99 %.1f us, p999 %.1f us, max %.1f us%n",
+                achieved, achieved * (double) size / (1024 * 1024), micros(result[2]), micros(result[3]),
+                micros(result[4]), micros(result[5]));
+        return result;
+    }
+
+    private void printSummary(List<long[]> results) {
+        System.out.println();
+        System.out.printf("%12s %12s %10s %10s %10s %10s%n", "offered/s", "achieved/s", "p50 us", "p99 us", "p999 us", "max us");
+        long saturation = -1;
+        for (long[] result : results) {
+            System.out.printf("%12s %12d %10.1f %10.1f %10.1f %10.1f%n", result[0] == 0 ? "max" : String.valueOf(result[0]),
+                    result[1], micros(result[2]), micros(result[3]), micros(result[4]), micros(result[5]));
+            if (saturation < 0 && result[0] > 0 && result[1] < result[0] * 0.95) {
+                saturation = result[0];
+            }
+        }
+        if (saturation < 0) {
+            System.out.println("The server kept up with every offered rate");
+        } else {
+            System.out.println("Saturated at an offered rate of " + saturation + " msgs/s");
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    /**
+     * Performs the client side of the handshake: waits for the version banner, sends the authentication string and
+     * the zero padded channel number, then waits for READY. Once ready, it replaces itself with a frame decoder and
+     * the data handler, passing on any bytes that arrived with READY.
+     */
+    private class ClientHandshake extends ByteToMessageDecoder {
+
+        private static final String READY = "READY";
+
+        private final Promise<Void>                ready = GlobalEventExecutor.INSTANCE.newPromise();
+        private final int                          channelNum;
+        private final ChannelInboundHandlerAdapter dataHandler;
+
+        private ChannelHandlerContext ctx;
+        private boolean               bannerReceived;
+
+        ClientHandshake(int channelNum, ChannelInboundHandlerAdapter dataHandler) {
+            this.channelNum = channelNum;
+            this.dataHandler = dataHandler;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (!bannerReceived) {
+                int end = in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n');
+                if (end < 0) {
+                    return;
+                }
+                String banner = in.toString(in.readerIndex(), end - in.readerIndex(), CharsetUtil.US_ASCII);
+                in.readerIndex(end + 1);
+                int dash = banner.indexOf('-');
+                if (dash < 1 || !banner.substring(0, dash).matches("[0-9]+")) {
+                    fail("Unexpected version banner: " + banner);
+                    return;
+                }
+                String hex = Integer.toHexString(channelNum);
+                int digits = Integer.parseInt(banner.substring(0, dash));
+                if (hex.length() > digits) {
+                    fail("Channel " + channelNum + " does not fit in " + digits + " hex digits");
+                    return;
+                }
+                StringBuilder handshake = new StringBuilder(auth);
+                for (int i = hex.length(); i < digits; i++) {
+                    handshake.append('0');
+                }
+                handshake.append(hex);
+                ctx.writeAndFlush(ctx.alloc().buffer().writeBytes(handshake.toString().getBytes(CharsetUtil.US_ASCII)));
+                bannerReceived = true;
+            }
+            if (in.readableBytes() < READY.length()) {
+                return;
+            }
+            String reply = in.toString(in.readerIndex(), READY.length(), CharsetUtil.US_ASCII);
+            if (!reply.equals(READY)) {
+                fail("Server refused channel " + channelNum + ": " + in.toString(CharsetUtil.US_ASCII));
+                return;
+            }
+            in.skipBytes(READY.length());
+            ctx.pipeline().addAfter(ctx.name(), null, dataHandler);
+            ctx.pipeline().replace(this, null, new FixedLengthFrameDecoder(size));
+            ready.trySuccess(null);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            ready.tryFailure(new IllegalStateException("Connection for channel " + channelNum + " closed during the handshake"));
+            super.channelInactive(ctx);
+        }
+
+        private void fail(String reason) {
+            ready.tryFailure(new IllegalStateException(reason));
+            ctx.close();
+        }
+    }
+
+    /**
+     * Counts a connection of a storm as accepted once the server's version banner arrives, and closes it right away
+     */
+    private class StormHandler extends ChannelInboundHandlerAdapter {
+
+        private final AtomicLong lastAccept;
+
+        private boolean greeted;
+
+        StormHandler(AtomicLong lastAccept) {
+            this.lastAccept = lastAccept;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf banner = (ByteBuf) msg;
+            try {
+                if (!greeted && banner.indexOf(banner.readerIndex(), banner.writerIndex(), (byte) '\n') >= 0) {
+                    greeted = true;
+                    accepted.incrementAndGet();
+                    lastAccept.accumulateAndGet(System.nanoTime(), Math::max);
+                    ctx.close();
+                }
+            } finally {
+                banner.release();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (!greeted) {
+                refused.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Sends timestamped messages on the first connection of a pair and records the round trip of every message that
+     * comes back.
+     */
+    private class Sender extends ChannelInboundHandlerAdapter {
+
+        private Channel channel;
+
+        private long               rate;
+        private long               intervalNanos;
+        private long               startNanos;
+        private long               scheduled;
+        private ScheduledFuture<?> ticker;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            channel = ctx.channel();
+        }
+
+        void start(long rate) {
+            channel.eventLoop().execute(() -> {
+                this.rate = rate;
+                if (rate == 0) {
+                    for (int i = 0; i < window; i++) {
+                        send(System.nanoTime());
+                    }
+                    channel.flush();
+                    return;
+                }
+                intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+                startNanos = System.nanoTime();
+                scheduled = 0;
+                long tick = Math.max(intervalNanos, TimeUnit.MILLISECONDS.toNanos(1));
+                ticker = channel.eventLoop().scheduleAtFixedRate(this::tick, 0, tick, TimeUnit.NANOSECONDS);
+            });
+        }
+
+        void stop() {
+            channel.eventLoop().execute(() -> {
+                if (ticker != null) {
+                    ticker.cancel(false);
+                    ticker = null;
+                }
+            });
+        }
+
+        /**
+         * Sends every message that is due by now, stamped with the time it should have been sent. Sending stops
+         * while the channel is not writable, so the backlog is reflected in the latency of the messages that follow.
+         */
+        private void tick() {
+            long due = (System.nanoTime() - startNanos) / intervalNanos + 1;
+            boolean wrote = false;
+            while (scheduled < due && channel.isWritable()) {
+                send(startNanos + scheduled * intervalNanos);
+                scheduled++;
+                wrote = true;
+            }
+            if (wrote) {
+                channel.flush();
+            }
+        }
+
+        private void send(long timestamp) {
+            ByteBuf message = channel.alloc().buffer(size);
+            message.writeLong(timestamp);
+            message.writeZero(size - Long.BYTES);
+            channel.write(message, channel.voidPromise());
+            sent.incrementAndGet();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf message = (ByteBuf) msg;
+            try {
+                latency.record(System.nanoTime() - message.getLong(message.readerIndex()));
+                received.incrementAndGet();
+            } finally {
+                message.release();
+            }
+            if (running && rate == 0) {
+                send(System.nanoTime());
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (running) {
+                System.err.println("Connection closed by the server");
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (running) {
+                System.err.println("Connection failed: " + cause.getMessage());
+            }
+            ctx.close();
+        }
+    }
+
+    /**
+     * Writes every message straight back on the second connection of a pair.
+     */
+    private static class Reflector extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.write(msg, ctx.voidPromise());
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
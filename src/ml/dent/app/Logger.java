@@ -1,91 +1,209 @@
 package ml.dent.app;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import io.netty.util.internal.PlatformDependent;
+
 import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/**
+ * Prints command output directly, and hands log messages to a dedicated writer thread through a bounded lock-free
+ * queue, so that event loops never block on stdout or the control sessions. When the queue is full, log messages are
+ * dropped and counted instead.
+ * <p>
+ * Command output goes to the {@link Console} of the thread executing the command, or to stdout if there is none. Log
+ * messages go to stdout and to every registered console.
+ */
 public class Logger {
 
+    private static final int QUEUE_CAPACITY = 8192;
+
     private static Logger instance;
 
-    private InputStream  in;
-    private OutputStream out;
+    private static final ThreadLocal<Console> currentConsole = new ThreadLocal<>();
+
+    private List<Console> consoles = new CopyOnWriteArrayList<>();
 
-    private PrintWriter pw;
+    /*
+     * Holds Strings, Throwables, and Suppliers that are evaluated on the writer thread
+     */
+    private Queue<Object> queue = PlatformDependent.newFixedMpscQueue(QUEUE_CAPACITY);
+    private AtomicLong    dropped = new AtomicLong();
 
-    Logger(boolean isDaemon) {
+    private Thread           writer;
+    private volatile boolean writerParked;
+
+    Logger() {
         instance = this;
-        if (isDaemon) {
-            new Thread(() -> {
-                ServerSocket controlSocket = null;
-                try {
-                    controlSocket = new ServerSocket(32565);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.out.println("Failed to start control server");
-                    return;
-                }
-                while (true) {
-                    try {
-                        Socket socket = controlSocket.accept();
-
-                        in = socket.getInputStream();
-                        out = socket.getOutputStream();
-                        pw = new PrintWriter(out, true);
-                        Main.setIn(in);
-
-                        socket.setKeepAlive(true);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }).start();
-        }
+        writer = new Thread(this::drain, "logger");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     public static Logger getInstance() {
         return instance;
     }
 
+    /**
+     * Starts sending log messages to the given console
+     */
+    public void addConsole(Console console) {
+        consoles.add(console);
+    }
+
+    public void removeConsole(Console console) {
+        consoles.remove(console);
+    }
+
+    /**
+     * Sends command output printed by the current thread to the given console, or to stdout if null
+     */
+    static void setConsole(Console console) {
+        if (console == null) {
+            currentConsole.remove();
+        } else {
+            currentConsole.set(console);
+        }
+    }
+
+    /**
+     * @return The console command output of the current thread is sent to, or null if it goes to stdout
+     */
+    static Console getConsole() {
+        return currentConsole.get();
+    }
+
     public void print(Object msg) {
-        if (pw != null && !pw.checkError()) {
-            pw.print(msg);
-            pw.flush();
+        Console console = currentConsole.get();
+        if (console != null) {
+            console.print(String.valueOf(msg));
         } else {
             System.out.print(msg);
         }
     }
 
     public void println(Object msg) {
-        if (pw != null && !pw.checkError()) {
-            pw.println(msg);
+        Console console = currentConsole.get();
+        if (console != null) {
+            console.print(msg + "\n");
         } else {
             System.out.println(msg);
         }
     }
 
     public void log(Object msg) {
-        System.out.print(msg);
-        if (pw != null) {
-            pw.print(msg);
-            pw.flush();
-        }
+        enqueue(new Partial(String.valueOf(msg)));
     }
 
     public void logln(Object msg) {
-        System.out.println(msg);
-        if (pw != null) {
-            pw.println(msg);
+        enqueue(String.valueOf(msg));
+    }
+
+    /**
+     * Logs a line only if the current verbosity is at least the given level. The message is built on the writer
+     * thread, so nothing is formatted when the line is filtered out.
+     */
+    public void logln(int verbosity, Supplier<?> msg) {
+        if (Main.getVerbosity() >= verbosity) {
+            enqueue(msg);
         }
     }
 
     public void log(Throwable throwable) {
-        throwable.printStackTrace();
-        if (pw != null) {
-            throwable.printStackTrace(pw);
+        enqueue(throwable);
+    }
+
+    /**
+     * @return The number of log messages dropped because the writer thread could not keep up
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits up to the given time for all queued log messages to be written
+     */
+    public void flush(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!queue.isEmpty() && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private void enqueue(Object event) {
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void drain() {
+        long reportedDropped = 0;
+        while (true) {
+            Object event = queue.poll();
+            if (event == null) {
+                long currentDropped = dropped.get();
+                if (currentDropped != reportedDropped) {
+                    write("Logger dropped " + (currentDropped - reportedDropped) + " messages");
+                    reportedDropped = currentDropped;
+                }
+                writerParked = true;
+                if (queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+                continue;
+            }
+            try {
+                if (event instanceof Supplier) {
+                    write(String.valueOf(((Supplier<?>) event).get()));
+                } else {
+                    write(event);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void write(Object event) {
+        String text;
+        if (event instanceof Throwable) {
+            Throwable throwable = (Throwable) event;
+            throwable.printStackTrace();
+            StringWriter trace = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(trace));
+            text = trace.toString();
+        } else if (event instanceof Partial) {
+            text = ((Partial) event).msg;
+            System.out.print(text);
+        } else {
+            System.out.println(event);
+            text = event + "\n";
+        }
+        for (Console console : consoles) {
+            console.log(text);
+        }
+    }
+
+    /**
+     * A log message that is not terminated by a new line
+     */
+    private static class Partial {
+        private String msg;
+
+        Partial(String msg) {
+            this.msg = msg;
         }
     }
 }
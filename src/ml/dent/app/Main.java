@@ -1,13 +1,32 @@
 package ml.dent.app;
 
 import io.netty.channel.ChannelFuture;
+import ml.dent.capture.PacketCapture;
+import ml.dent.cluster.ClusterLinkInfo;
+import ml.dent.cluster.ClusterNode;
+import ml.dent.connect.ChannelRing;
+import ml.dent.connect.ChannelStats;
 import ml.dent.connect.Connection;
 import ml.dent.connect.ConnectionManager;
+import ml.dent.connect.OutboundBudget;
+import ml.dent.connect.ServerStats;
+import ml.dent.connect.SlowMemberPolicy;
+import ml.dent.connect.TrafficShaper;
 import ml.dent.net.MainServer;
+import ml.dent.net.Transport;
 
-import java.io.InputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
     public static final String VERSION = "1.0";
@@ -19,6 +38,45 @@ public class Main {
     private static int     VERBOSE_CHANNEL = -1;
     private static boolean ECHO            = false;
     private static boolean DAEMON          = false;
+    private static int     AUTH_TIMEOUT    = 5;
+    private static boolean FLUSH_BATCHING  = false;
+    private static int     FLUSH_MESSAGES  = 64;
+    private static int     FLUSH_BYTES     = 64 * 1024;
+    private static boolean GROUP_AFFINITY  = false;
+    private static boolean SPLICE          = false;
+    private static int     SPLICE_CHUNK    = 64 * 1024;
+    private static int     WRITE_LOW_MARK  = 32 * 1024;
+    private static int     WRITE_HIGH_MARK = 64 * 1024;
+    private static long    OUTBOUND_BUDGET = 0;
+
+    private static SlowMemberPolicy SLOW_POLICY = SlowMemberPolicy.PAUSE;
+    private static long             SLOW_QUEUE  = 1024 * 1024;
+
+    private static int MAX_FRAME = 64 * 1024;
+
+    private static Transport TRANSPORT      = Transport.best();
+    private static int       BOSS_THREADS   = 1;
+    private static int       WORKER_THREADS = 0;
+    private static int       LISTENERS      = 1;
+    private static int       BACKLOG        = 50;
+    private static int       METRICS_PORT   = 0;
+
+    private static final int DEFAULT_CONTROL_PORT = 32565;
+
+    private static int         CONTROL_PORT    = 0;
+    private static InetAddress CONTROL_ADDRESS = InetAddress.getLoopbackAddress();
+
+    private static int          CLUSTER_PORT    = 0;
+    private static InetAddress  CLUSTER_ADDRESS = InetAddress.getLoopbackAddress();
+    private static String       CLUSTER_SECRET  = null;
+    private static List<String> PEERS           = new ArrayList<>();
+
+    private static Path   RING_FILE = null;
+    private static String RING_SELF = null;
+
+    private static Path TAKEOVER_PATH = null;
+
+    private static final int DEFAULT_DRAIN_SECONDS = 300;
 
     private static final String authString = "hi";
 
@@ -32,7 +90,7 @@ public class Main {
         }, "Stops the server from listening and closes all current connections"));
 
         commands.add(new Command("exit", (args) -> {
-            // TODO
+            closeConsole();
         }, "Closes the debug session but allows the server to continue running"));
 
         commands.add(new Command("help", (args) -> {
@@ -59,55 +117,180 @@ public class Main {
         commands.add(new Command("kill", (args) -> {
             kill(args);
         }, "Kills the specified connection"));
+
+        commands.add(new Command("stats", (args) -> {
+            printStats(args);
+        }, "Prints traffic and handshake counters and the number of threads\n" +
+                "\tchannels - also print the counters of every active channel"));
+
+        commands.add(new Command("top", (args) -> {
+            top(args);
+        }, "Continuously shows the busiest channels until enter is pressed\n" +
+                "\t[ROWS] [INTERVAL_SECONDS] - number of channels to show (DEFAULT 10), seconds between refreshes (DEFAULT 1)"));
+
+        commands.add(new Command("capture", (args) -> {
+            capture(args);
+        }, "Records forwarded packets into rotating memory-mapped segment files\n" +
+                "\tstart <DIRECTORY> [CHANNEL_NUM] [SEGMENT_MB] [SEGMENTS] - start capturing, -1 for all channels (DEFAULT)\n" +
+                "\tstop - stop capturing\n" +
+                "\tstatus - print the state of the running capture\n" +
+                "\tRead segments with: java -cp BounceServer.jar ml.dent.capture.CaptureReader <DIRECTORY>"));
+
+        commands.add(new Command("upgrade", (args) -> {
+            upgrade(args);
+        }, "Hands the listening sockets and all connections to a new server process, then exits\n" +
+                "\t<SOCKET_PATH> - unix socket to wait on, start the new process with --takeover <SOCKET_PATH>"));
+
+        commands.add(new Command("drain", (args) -> {
+            drain(args);
+        }, "Stops accepting connections and exits once all open connections have closed\n" +
+                "\t[SECONDS] - close the remaining connections and exit after this long (DEFAULT " + DEFAULT_DRAIN_SECONDS + ")"));
+
+        commands.add(new Command("ring", (args) -> {
+            ring(args);
+        }, "Shows or reloads the ring that assigns channels to servers\n" +
+                "\tstatus - print the servers of the ring and how many channels each owns (DEFAULT)\n" +
+                "\treload - read the ring file again, members of channels that move stay connected\n" +
+                "\towner <CHANNEL_NUM> - print the server that owns the channel"));
+
+        commands.add(new Command("slow", (args) -> {
+            slow(args);
+        }, "Shows or changes what channels do about members that cannot keep up\n" +
+                "\tstatus - print the default policy, the queue limit and the channels with their own policy (DEFAULT)\n" +
+                "\tpause|drop|disconnect - set the default policy\n" +
+                "\tchannel <CHANNEL_NUM> <pause|drop|disconnect|default> - set the policy of one channel\n" +
+                "\tqueue <BYTES> - set how much may be queued for a member before it is dropped or disconnected"));
+
+        commands.add(new Command("limit", (args) -> {
+            limit(args);
+        }, "Shows or changes the traffic shaping limits, in bytes per second\n" +
+                "\tstatus - print the current limits (DEFAULT)\n" +
+                "\tread <BYTES_PER_SECOND|off> [BURST] - limit the bytes received from each connection\n" +
+                "\twrite <BYTES_PER_SECOND|off> [BURST] - limit the bytes forwarded to each connection\n" +
+                "\tchannel <BYTES_PER_SECOND|off> [BURST] - limit the bytes received from all members of each channel\n" +
+                "\tglobal <BYTES_PER_SECOND|off> [BURST] - limit the bytes received by the whole server\n" +
+                "\tThe burst defaults to one second worth of bytes"));
     }
 
-    private static Scanner file;
+    /**
+     * Runs commands one at a time, so they never execute on, or block, an event loop
+     */
+    private static ScheduledExecutorService commandExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "control");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private static CountDownLatch controlConnected = new CountDownLatch(1);
+    /*
+     * Output that keeps being written to a console after its command returned, such as top. Keyed by console, or by
+     * STDIN for stdin. Only touched on the command thread.
+     */
+    private static final Object STDIN = new Object();
 
-    public static void setIn(InputStream in) {
-        file = new Scanner(in);
-        controlConnected.countDown();
+    private static Map<Object, ScheduledFuture<?>> streams = new HashMap<>();
+
+    /**
+     * Queues a command line entered on the given console, or on stdin if null. The command's output is written to
+     * the same console, followed by a new prompt. Any line, even an empty one, stops output still being streamed
+     * to the console.
+     *
+     * @return A future completed once the command has run
+     */
+    public static Future<?> submitCommand(Console console, String line) {
+        return commandExecutor.submit(() -> {
+            Logger.setConsole(console);
+            try {
+                stopStream(console);
+                executeCommand(line);
+            } catch (RuntimeException e) {
+                logger.println("Command failed: " + e);
+            } finally {
+                if ((console == null || console.isOpen()) && !streams.containsKey(streamKey(console))) {
+                    logger.print("> ");
+                }
+                Logger.setConsole(null);
+            }
+        });
     }
 
-    private static void executeCommands() {
-        while (true) {
+    /**
+     * Prints the output of the given task to the current console every interval until the next line is entered
+     * there. Must be called from a command.
+     */
+    private static void stream(Runnable task, long interval, TimeUnit unit) {
+        Console console = Logger.getConsole();
+        ScheduledFuture<?> stream = commandExecutor.scheduleAtFixedRate(() -> {
+            if (console != null && !console.isOpen()) {
+                stopStream(console);
+                return;
+            }
+            Logger.setConsole(console);
             try {
-                controlConnected.await();
-            } catch (InterruptedException e) {
-                continue;
+                task.run();
+            } finally {
+                Logger.setConsole(null);
             }
-            logger.print("> ");
-            String line;
+        }, interval, interval, unit);
+        streams.put(streamKey(console), stream);
+    }
+
+    private static void stopStream(Console console) {
+        ScheduledFuture<?> stream = streams.remove(streamKey(console));
+        if (stream != null) {
+            stream.cancel(false);
+        }
+    }
+
+    private static Object streamKey(Console console) {
+        return console == null ? STDIN : console;
+    }
+
+    /**
+     * @return The executor commands run on, for commands that keep producing output after they return
+     */
+    static ScheduledExecutorService getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    /**
+     * Reads commands from stdin until it is closed. The server keeps running afterwards.
+     */
+    private static void readCommands() {
+        Scanner in = new Scanner(System.in);
+        logger.print("> ");
+        while (in.hasNextLine()) {
+            String line = in.nextLine();
             try {
-                line = file.nextLine();
+                submitCommand(null, line).get();
             } catch (Exception e) {
-                controlConnected = new CountDownLatch(1);
-                continue;
+                logger.log(e);
             }
-            String[] input = line.trim().split(" ");
+        }
+    }
 
-            if (input[0].isEmpty()) {
-                continue;
-            }
+    private static void executeCommand(String line) {
+        String[] input = line.trim().split(" ");
 
-            ArrayList<Command> possibleCommands = parseCommand(input[0]);
+        if (input[0].isEmpty()) {
+            return;
+        }
 
-            if (possibleCommands.size() > 1) {
-                logger.println("Ambiguous command. Possible options: ");
-                for (Command com : possibleCommands) {
-                    logger.println(com.getName());
-                }
-                continue;
-            } else if (possibleCommands.size() == 0) {
-                logger.println("Unknown command. Possible options: ");
-                printHelp();
-                continue;
+        ArrayList<Command> possibleCommands = parseCommand(input[0]);
+
+        if (possibleCommands.size() > 1) {
+            logger.println("Ambiguous command. Possible options: ");
+            for (Command com : possibleCommands) {
+                logger.println(com.getName());
             }
-            Command command = possibleCommands.get(0);
-            String[] args = Arrays.copyOfRange(input, 1, input.length);
-            command.execute(args);
+            return;
+        } else if (possibleCommands.size() == 0) {
+            logger.println("Unknown command. Possible options: ");
+            printHelp();
+            return;
         }
+        Command command = possibleCommands.get(0);
+        String[] args = Arrays.copyOfRange(input, 1, input.length);
+        command.execute(args);
     }
 
     private static ArrayList<Command> parseCommand(String input) {
@@ -157,6 +340,15 @@ public class Main {
             case "channels":
                 printChannels();
                 break;
+            case "budget":
+                printBudget();
+                break;
+            case "logger":
+                printLogger();
+                break;
+            case "cluster":
+                printCluster();
+                break;
         }
     }
 
@@ -183,6 +375,70 @@ public class Main {
         }
     }
 
+    private static void printStats(String[] args) {
+        ServerStats stats = server.getStats();
+        logger.println("Traffic: " + stats.getTraffic());
+        logger.println("Handshakes started: " + stats.getHandshakesStarted() + ", completed: "
+                + stats.getHandshakesCompleted() + ", failed: " + stats.getHandshakesFailed() + ", redirected: "
+                + stats.getHandshakesRedirected());
+        logger.println("Connections: " + stats.getConnections() + ", active groups: " + stats.getActiveGroups());
+        logger.println("Threads: " + ManagementFactory.getThreadMXBean().getThreadCount());
+        if (args.length > 0 && args[0].equals("channels")) {
+            for (ChannelStats channel : server.getChannelStats()) {
+                logger.println(String.format("%5d (%d members%s) - %s", channel.getChannelNumber(), channel.getMembers(),
+                        channel.isPaused() ? ", paused" : "", channel.getTraffic()));
+            }
+        }
+    }
+
+    private static void top(String[] args) {
+        int rows = 10;
+        int interval = 1;
+        if (args.length > 0) {
+            if (!args[0].matches("[0-9]+") || Integer.parseInt(args[0]) == 0) {
+                logger.println("Number of rows must be a positive integer");
+                return;
+            }
+            rows = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            if (!args[1].matches("[0-9]+") || Integer.parseInt(args[1]) == 0) {
+                logger.println("Interval must be a positive number of seconds");
+                return;
+            }
+            interval = Integer.parseInt(args[1]);
+        }
+        ChannelTop top = new ChannelTop(server, rows);
+        logger.println("Sampling channels every " + interval + " seconds, press enter to stop");
+        stream(() -> logger.print(top.render()), interval, TimeUnit.SECONDS);
+    }
+
+    private static void printBudget() {
+        OutboundBudget budget = server.getOutboundBudget();
+        if (budget == null) {
+            logger.println("No outbound budget set");
+            return;
+        }
+        logger.println("Outbound bytes queued: " + budget.getQueued() + " / " + budget.getBudget());
+        logger.println("Connections paused by budget: " + budget.getPausedCount());
+    }
+
+    private static void printCluster() {
+        ClusterNode node = server.getClusterNode();
+        if (node == null) {
+            logger.println("Clustering is disabled");
+            return;
+        }
+        logger.println(String.format("This node: %016x", node.getNodeId()));
+        for (ClusterLinkInfo link : node.getLinks()) {
+            logger.println(link);
+        }
+    }
+
+    private static void printLogger() {
+        logger.println("Log messages dropped: " + logger.getDropped());
+    }
+
     private static void kill(String[] args) {
         if (args.length <= 0) {
             logger.println("Too few arguments to kill command");
@@ -209,6 +465,237 @@ public class Main {
         }
     }
 
+    private static void capture(String[] args) {
+        if (args.length <= 0) {
+            logger.println("Too few arguments to capture command");
+            logger.println(parseCommand("capture").get(0));
+            return;
+        }
+        switch (args[0].toLowerCase()) {
+            case "start":
+                if (args.length <= 1) {
+                    logger.println("Too few arguments to capture start command");
+                    logger.println("Requires directory argument");
+                    return;
+                }
+                for (int i = 2; i < args.length; i++) {
+                    if (!args[i].matches("-?[0-9]+")) {
+                        logger.println("Arguments to capture start command must be numbers");
+                        return;
+                    }
+                }
+                int channel = args.length > 2 ? Integer.parseInt(args[2]) : -1;
+                int segmentMb = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+                int segments = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+                if (segmentMb <= 0 || segmentMb > 1024 || segments <= 0) {
+                    logger.println("Segment size must be between 1 and 1024 MB, and at least one segment must be kept");
+                    return;
+                }
+                try {
+                    PacketCapture.start(Paths.get(args[1]), channel, segmentMb * 1024 * 1024, segments);
+                    logger.println("Capturing " + (channel == -1 ? "all channels" : "channel " + channel) + " to " + args[1]);
+                } catch (IOException e) {
+                    logger.println("Failed to start capture: " + e.getMessage());
+                }
+                break;
+            case "stop":
+                PacketCapture.stop();
+                break;
+            case "status":
+                PacketCapture capture = PacketCapture.getActive();
+                if (capture == null) {
+                    logger.println("Not capturing");
+                } else {
+                    logger.println("Capturing " + (capture.getChannel() == -1 ? "all channels" : "channel " + capture.getChannel())
+                            + " to " + capture.getDirectory());
+                    logger.println("Packets captured: " + capture.getCaptured() + ", dropped: " + capture.getDropped());
+                }
+                break;
+            default:
+                logger.println("Unknown capture command: " + args[0]);
+                logger.println(parseCommand("capture").get(0));
+        }
+    }
+
+    private static void upgrade(String[] args) {
+        if (args.length <= 0) {
+            logger.println("Too few arguments to upgrade command");
+            logger.println(parseCommand("upgrade").get(0));
+            return;
+        }
+        int handed;
+        try {
+            handed = server.upgrade(Paths.get(args[0]));
+        } catch (IOException e) {
+            logger.println("Upgrade failed, this server keeps serving: " + e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        logger.logln("Handed " + handed + " connections to the new server process, exiting");
+        logger.flush(1, TimeUnit.SECONDS);
+        // The sockets belong to the new process now, closing the server here would only tear down this process' copies
+        System.exit(0);
+    }
+
+    private static void drain(String[] args) {
+        if (args.length > 0 && !args[0].matches("[0-9]+")) {
+            logger.println("Argument to drain command must be a number of seconds");
+            return;
+        }
+        if (server.isDraining()) {
+            logger.println("Already draining");
+            return;
+        }
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_DRAIN_SECONDS;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        server.drain();
+        logger.logln("Stopped accepting connections, exiting once the " + server.getConnections().size()
+                + " open connections have closed, or in " + seconds + " seconds");
+        commandExecutor.scheduleWithFixedDelay(() -> {
+            int open = server.getConnections().size();
+            if (open == 0) {
+                logger.logln("All connections closed, exiting");
+                exit();
+            } else if (System.nanoTime() > deadline) {
+                logger.logln("Drain timed out, closing " + open + " connections");
+                exit();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static void ring(String[] args) {
+        ChannelRing ring = server.getRing();
+        if (ring == null) {
+            logger.println("No channel ring set, this server accepts every channel");
+            return;
+        }
+        String sub = args.length > 0 ? args[0].toLowerCase() : "status";
+        switch (sub) {
+            case "status":
+                printRing(ring);
+                break;
+            case "reload":
+                ChannelRing reloaded;
+                try {
+                    reloaded = ChannelRing.load(RING_FILE, RING_SELF);
+                } catch (IOException e) {
+                    logger.println("Failed to reload channel ring, keeping the current one: " + e.getMessage());
+                    return;
+                }
+                server.setRing(reloaded);
+                logger.println("Reloaded channel ring from " + RING_FILE);
+                printRing(reloaded);
+                break;
+            case "owner":
+                if (args.length <= 1 || !args[1].matches("[0-9]{1,9}")) {
+                    logger.println("Requires a channel number argument");
+                    return;
+                }
+                logger.println(ring.ownerOf(Integer.parseInt(args[1])));
+                break;
+            default:
+                logger.println("Unknown ring command: " + args[0]);
+                logger.println(parseCommand("ring").get(0));
+        }
+    }
+
+    private static void slow(String[] args) {
+        String sub = args.length > 0 ? args[0].toLowerCase() : "status";
+        SlowMemberPolicy policy = SlowMemberPolicy.fromName(sub);
+        if (policy != null) {
+            SLOW_POLICY = policy;
+            server.defaultPolicyChanged();
+            logger.println("Set the default slow member policy to " + sub);
+            return;
+        }
+        switch (sub) {
+            case "status":
+                logger.println("Default policy: " + SLOW_POLICY.name().toLowerCase() + ", queue limit " + SLOW_QUEUE + " bytes");
+                for (Map.Entry<Integer, SlowMemberPolicy> entry : server.getChannelPolicies().entrySet()) {
+                    logger.println("Channel " + entry.getKey() + ": " + entry.getValue().name().toLowerCase());
+                }
+                break;
+            case "channel":
+                if (args.length <= 2 || !args[1].matches("[0-9]{1,9}")
+                        || (SlowMemberPolicy.fromName(args[2]) == null && !args[2].equalsIgnoreCase("default"))) {
+                    logger.println("Requires a channel number and one of: pause, drop, disconnect, default");
+                    return;
+                }
+                server.setChannelPolicy(Integer.parseInt(args[1]), SlowMemberPolicy.fromName(args[2]));
+                logger.println("Set the slow member policy of channel " + args[1] + " to " + args[2].toLowerCase());
+                break;
+            case "queue":
+                if (args.length <= 1 || !args[1].matches("[0-9]{1,15}")) {
+                    logger.println("Requires a number of bytes");
+                    return;
+                }
+                SLOW_QUEUE = Long.parseLong(args[1]);
+                logger.println("Set the slow member queue limit to " + SLOW_QUEUE + " bytes");
+                break;
+            default:
+                logger.println("Unknown slow command: " + args[0]);
+                logger.println(parseCommand("slow").get(0));
+        }
+    }
+
+    private static void limit(String[] args) {
+        String sub = args.length > 0 ? args[0].toLowerCase() : "status";
+        if (sub.equals("status")) {
+            TrafficShaper shaper = TrafficShaper.getActive();
+            if (shaper == null) {
+                logger.println("Traffic shaping is disabled");
+                return;
+            }
+            for (TrafficShaper.Scope scope : TrafficShaper.Scope.values()) {
+                long rate = shaper.getRate(scope);
+                logger.println(scope.name().toLowerCase() + " - " + (rate == 0 ? "off"
+                        : rate + " B/s, burst " + shaper.getBurst(scope) + " B"));
+            }
+            logger.println("Reads paused " + shaper.getPauses() + " times");
+            return;
+        }
+        TrafficShaper.Scope scope;
+        try {
+            scope = TrafficShaper.Scope.valueOf(sub.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.println("Unknown limit command: " + args[0]);
+            logger.println(parseCommand("limit").get(0));
+            return;
+        }
+        if (args.length <= 1 || !args[1].matches("[0-9]{1,15}|off")
+                || (args.length > 2 && !args[2].matches("[0-9]{1,15}"))) {
+            logger.println("Requires a number of bytes per second or off, and optionally a burst in bytes");
+            return;
+        }
+        long rate = args[1].equals("off") ? 0 : Long.parseLong(args[1]);
+        setLimit(scope, rate, args.length > 2 ? Long.parseLong(args[2]) : rate);
+        logger.println(rate == 0 ? "Removed the " + sub + " limit" : "Set the " + sub + " limit to " + rate + " B/s");
+    }
+
+    private static void setLimit(TrafficShaper.Scope scope, long bytesPerSecond, long burst) {
+        TrafficShaper current = TrafficShaper.getActive();
+        TrafficShaper.setActive(current == null ? TrafficShaper.of(scope, bytesPerSecond, burst)
+                : current.with(scope, bytesPerSecond, burst));
+    }
+
+    private static void printRing(ChannelRing ring) {
+        if (!ring.containsSelf()) {
+            logger.println("This server (" + ring.getSelf() + ") is not in the ring and redirects every channel");
+        }
+        int[] owned = ring.distribution(ConnectionManager.MAX_PAIRS);
+        List<String> servers = ring.getServers();
+        for (int i = 0; i < servers.size(); i++) {
+            logger.println(String.format("%s%s - %d channels", servers.get(i),
+                    servers.get(i).equals(ring.getSelf()) ? " (this server)" : "", owned[i]));
+        }
+        List<Integer> moved = server.getMovedChannels();
+        if (!moved.isEmpty()) {
+            logger.println(moved.size() + " active channels belong to other servers and keep their current members");
+        }
+    }
+
     private static void setVerbosity(String[] args) {
         if (args.length <= 0) {
             logger.println("Too few arguments to verbose command");
@@ -255,8 +742,18 @@ public class Main {
         }
     }
 
+    private static void closeConsole() {
+        Console console = Logger.getConsole();
+        if (console == null) {
+            logger.println("Not connected to the control server, use stop to shut down the server");
+            return;
+        }
+        console.close();
+    }
+
     private static void exit() {
         server.close();
+        logger.flush(1, TimeUnit.SECONDS);
         System.exit(0);
     }
 
@@ -272,10 +769,197 @@ public class Main {
         return ECHO;
     }
 
+    /**
+     * @return The number of seconds a new connection has to send the authentication string
+     */
+    public static int getAuthTimeout() {
+        return AUTH_TIMEOUT;
+    }
+
+    /**
+     * @return true if forwarded data is only flushed once per read batch instead of once per message
+     */
+    public static boolean getFlushBatching() {
+        return FLUSH_BATCHING;
+    }
+
+    /**
+     * @return The number of forwarded messages after which a sender flushes its peers before its read batch ends
+     */
+    public static int getFlushMessages() {
+        return FLUSH_MESSAGES;
+    }
+
+    /**
+     * @return The number of forwarded bytes after which a sender flushes its peers before its read batch ends
+     */
+    public static int getFlushBytes() {
+        return FLUSH_BYTES;
+    }
+
+    /**
+     * @return true if all members of a connection group should be served by the same event loop. Always true when
+     * splicing is enabled.
+     */
+    public static boolean getGroupAffinity() {
+        return GROUP_AFFINITY;
+    }
+
+    /**
+     * @return true if two-member groups should forward data with splice(2) instead of copying it through user space.
+     * Enabling splicing also enables group affinity, since both members of a spliced group must be served by the same
+     * event loop.
+     */
+    public static boolean getSplice() {
+        return SPLICE;
+    }
+
+    /**
+     * @return The number of bytes spliced in one chunk. A group only checks whether it still qualifies for splicing
+     * when a chunk completes.
+     */
+    public static int getSpliceChunk() {
+        return SPLICE_CHUNK;
+    }
+
+    /**
+     * @return The number of queued outbound bytes below which a connection that was overloaded is writable again
+     */
+    public static int getWriteLowWaterMark() {
+        return WRITE_LOW_MARK;
+    }
+
+    /**
+     * @return The number of queued outbound bytes above which a connection is overloaded and its group is paused
+     */
+    public static int getWriteHighWaterMark() {
+        return WRITE_HIGH_MARK;
+    }
+
+    /**
+     * @return The maximum number of bytes queued for sending across all connections, 0 if unlimited
+     */
+    public static long getOutboundBudget() {
+        return OUTBOUND_BUDGET;
+    }
+
+    /**
+     * @return The slow member policy of every channel without a policy of its own
+     */
+    public static SlowMemberPolicy getSlowPolicy() {
+        return SLOW_POLICY;
+    }
+
+    /**
+     * @return The number of bytes that may be queued for a member before the drop and disconnect policies apply
+     */
+    public static long getSlowQueue() {
+        return SLOW_QUEUE;
+    }
+
+    /**
+     * @return The largest payload a client in framing mode may send in one frame
+     */
+    public static int getMaxFrame() {
+        return MAX_FRAME;
+    }
+
+    /**
+     * @return The transport requested at startup, or the best available one if none was requested
+     */
+    public static Transport getTransport() {
+        return TRANSPORT;
+    }
+
+    /**
+     * @return The number of threads accepting connections, 0 for Netty's default
+     */
+    public static int getBossThreads() {
+        return BOSS_THREADS;
+    }
+
+    /**
+     * @return The number of threads serving accepted connections, 0 for Netty's default
+     */
+    public static int getWorkerThreads() {
+        return WORKER_THREADS;
+    }
+
+    /**
+     * @return The number of listening sockets bound to the server port with SO_REUSEPORT
+     */
+    public static int getListeners() {
+        return LISTENERS;
+    }
+
+    /**
+     * @return The local port the Prometheus metrics endpoint listens on, 0 if disabled
+     */
+    public static int getMetricsPort() {
+        return METRICS_PORT;
+    }
+
+    /**
+     * @return The port the control server listens on, 0 if disabled
+     */
+    public static int getControlPort() {
+        return CONTROL_PORT;
+    }
+
+    /**
+     * @return The address the control server binds to, the loopback address unless given, also in daemon mode
+     */
+    public static InetAddress getControlAddress() {
+        return CONTROL_ADDRESS;
+    }
+
+    /**
+     * @return The port other servers of the cluster connect to, 0 if this server does not accept links
+     */
+    public static int getClusterPort() {
+        return CLUSTER_PORT;
+    }
+
+    /**
+     * @return The address the cluster port binds to, the loopback address unless given
+     */
+    public static InetAddress getClusterAddress() {
+        return CLUSTER_ADDRESS;
+    }
+
+    /**
+     * @return The secret every server of the cluster must present when opening a link, null if clustering is disabled
+     */
+    public static String getClusterSecret() {
+        return CLUSTER_SECRET;
+    }
+
+    /**
+     * @return The host:port addresses of the cluster servers this server keeps links open to
+     */
+    public static List<String> getPeers() {
+        return PEERS;
+    }
+
+    /**
+     * @return The unix socket to take the sockets of the previous server process over from, or null to bind normally
+     */
+    public static Path getTakeoverPath() {
+        return TAKEOVER_PATH;
+    }
+
     public static String getAuthString() {
         return authString;
     }
 
+    /**
+     * Reports an invalid command line and exits. Used while arguments are parsed, before the logger exists.
+     */
+    private static void argumentError(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+
     public static void main(String[] args) throws InterruptedException {
         if (args.length > 0) {
             for (int i = 0; i < args.length; i++) {
@@ -298,31 +982,26 @@ public class Main {
                         break;
                     case "-p":
                         if (i == args.length - 1) {
-                            logger.logln("-p requires an integer argument between 1 and 65535");
-                            System.exit(1);
+                            argumentError("-p requires an integer argument between 1 and 65535");
                         }
                         String portString = args[i + 1];
                         if (!portString.matches("[0-9]+")) {
-                            logger.logln("-p requires an integer argument between 1 and 65535");
-                            System.exit(1);
+                            argumentError("-p requires an integer argument between 1 and 65535");
                         }
                         int port = Integer.parseInt(portString);
                         if (port < 1 || port > 65535) {
-                            logger.logln("-p requires an integer argument between 1 and 65535");
-                            System.exit(1);
+                            argumentError("-p requires an integer argument between 1 and 65535");
                         }
                         PORT = port;
                         i++;
                         break;
                     case "--max-connections":
                         if (i == args.length - 1) {
-                            logger.logln("--max-connections requires an integer argument");
-                            System.exit(1);
+                            argumentError("--max-connections requires an integer argument");
                         }
                         String maxConnectionsString = args[i + 1];
                         if (!maxConnectionsString.matches("[0-9]+")) {
-                            logger.logln("--max-connections requires an integer argument");
-                            System.exit(1);
+                            argumentError("--max-connections requires an integer argument");
                         }
                         int maxConnections = Integer.parseInt(maxConnectionsString);
                         ConnectionManager.setMaxConnections(maxConnections);
@@ -330,36 +1009,348 @@ public class Main {
                         break;
                     case "--max-pairs":
                         if (i == args.length - 1) {
-                            logger.logln("--max-pairs requires an integer argument");
-                            System.exit(1);
+                            argumentError("--max-pairs requires an integer argument");
                         }
                         String maxPairsString = args[i + 1];
                         if (!maxPairsString.matches("[0-9]+")) {
-                            logger.logln("--max-pairs requires an integer argument");
-                            System.exit(1);
+                            argumentError("--max-pairs requires an integer argument");
                         }
                         int maxPairs = Integer.parseInt(maxPairsString);
                         ConnectionManager.setMaxPairs(maxPairs);
                         i++;
                         break;
+                    case "--auth-timeout":
+                        if (i == args.length - 1) {
+                            argumentError("--auth-timeout requires an integer argument");
+                        }
+                        String authTimeoutString = args[i + 1];
+                        if (!authTimeoutString.matches("[0-9]+")) {
+                            argumentError("--auth-timeout requires an integer argument");
+                        }
+                        AUTH_TIMEOUT = Integer.parseInt(authTimeoutString);
+                        i++;
+                        break;
+                    case "--batch-flush":
+                        FLUSH_BATCHING = true;
+                        break;
+                    case "--group-affinity":
+                        GROUP_AFFINITY = true;
+                        break;
+                    case "--splice":
+                        // both ends of a splice must be served by the same event loop, so this forces group affinity
+                        SPLICE = true;
+                        GROUP_AFFINITY = true;
+                        break;
+                    case "--splice-chunk":
+                        if (i == args.length - 1) {
+                            argumentError("--splice-chunk requires an integer argument");
+                        }
+                        String spliceChunkString = args[i + 1];
+                        if (!spliceChunkString.matches("[0-9]+") || Integer.parseInt(spliceChunkString) == 0) {
+                            argumentError("--splice-chunk requires an integer argument");
+                        }
+                        SPLICE_CHUNK = Integer.parseInt(spliceChunkString);
+                        i++;
+                        break;
+                    case "--write-low-water":
+                        if (i == args.length - 1) {
+                            argumentError("--write-low-water requires an integer argument");
+                        }
+                        String writeLowString = args[i + 1];
+                        if (!writeLowString.matches("[0-9]+")) {
+                            argumentError("--write-low-water requires an integer argument");
+                        }
+                        WRITE_LOW_MARK = Integer.parseInt(writeLowString);
+                        i++;
+                        break;
+                    case "--write-high-water":
+                        if (i == args.length - 1) {
+                            argumentError("--write-high-water requires an integer argument");
+                        }
+                        String writeHighString = args[i + 1];
+                        if (!writeHighString.matches("[0-9]+")) {
+                            argumentError("--write-high-water requires an integer argument");
+                        }
+                        WRITE_HIGH_MARK = Integer.parseInt(writeHighString);
+                        i++;
+                        break;
+                    case "--outbound-budget":
+                        if (i == args.length - 1) {
+                            argumentError("--outbound-budget requires an integer argument");
+                        }
+                        String budgetString = args[i + 1];
+                        if (!budgetString.matches("[0-9]+")) {
+                            argumentError("--outbound-budget requires an integer argument");
+                        }
+                        OUTBOUND_BUDGET = Long.parseLong(budgetString);
+                        i++;
+                        break;
+                    case "--slow-policy":
+                        if (i == args.length - 1 || SlowMemberPolicy.fromName(args[i + 1]) == null) {
+                            argumentError("--slow-policy requires one of: pause, drop, disconnect");
+                        }
+                        SLOW_POLICY = SlowMemberPolicy.fromName(args[i + 1]);
+                        i++;
+                        break;
+                    case "--slow-queue":
+                        if (i == args.length - 1 || !args[i + 1].matches("[0-9]{1,15}")) {
+                            argumentError("--slow-queue requires an integer argument");
+                        }
+                        SLOW_QUEUE = Long.parseLong(args[i + 1]);
+                        i++;
+                        break;
+                    case "--max-frame":
+                        if (i == args.length - 1 || !args[i + 1].matches("[0-9]{1,10}")
+                                || Long.parseLong(args[i + 1]) == 0 || Long.parseLong(args[i + 1]) > 1 << 30) {
+                            argumentError("--max-frame requires an integer argument between 1 and " + (1 << 30));
+                        }
+                        MAX_FRAME = Integer.parseInt(args[i + 1]);
+                        i++;
+                        break;
+                    case "--transport":
+                        if (i == args.length - 1) {
+                            argumentError("--transport requires one of: epoll, nio");
+                        }
+                        if (args[i + 1].equalsIgnoreCase("io_uring")) {
+                            argumentError("--transport io_uring is not supported by the Netty release this server is built with, use epoll or nio");
+                        }
+                        Transport transport = Transport.fromName(args[i + 1]);
+                        if (transport == null) {
+                            argumentError("--transport requires one of: epoll, nio");
+                        }
+                        TRANSPORT = transport;
+                        i++;
+                        break;
+                    case "--boss-threads":
+                        if (i == args.length - 1) {
+                            argumentError("--boss-threads requires an integer argument");
+                        }
+                        String bossThreadsString = args[i + 1];
+                        if (!bossThreadsString.matches("[0-9]+")) {
+                            argumentError("--boss-threads requires an integer argument");
+                        }
+                        BOSS_THREADS = Integer.parseInt(bossThreadsString);
+                        i++;
+                        break;
+                    case "--worker-threads":
+                        if (i == args.length - 1) {
+                            argumentError("--worker-threads requires an integer argument");
+                        }
+                        String workerThreadsString = args[i + 1];
+                        if (!workerThreadsString.matches("[0-9]+")) {
+                            argumentError("--worker-threads requires an integer argument");
+                        }
+                        WORKER_THREADS = Integer.parseInt(workerThreadsString);
+                        i++;
+                        break;
+                    case "--listeners":
+                        if (i == args.length - 1) {
+                            argumentError("--listeners requires an integer argument");
+                        }
+                        String listenersString = args[i + 1];
+                        if (!listenersString.matches("[0-9]+") || Integer.parseInt(listenersString) == 0) {
+                            argumentError("--listeners requires an integer argument");
+                        }
+                        LISTENERS = Integer.parseInt(listenersString);
+                        i++;
+                        break;
+                    case "--backlog":
+                        if (i == args.length - 1) {
+                            argumentError("--backlog requires an integer argument");
+                        }
+                        String backlogString = args[i + 1];
+                        if (!backlogString.matches("[0-9]+")) {
+                            argumentError("--backlog requires an integer argument");
+                        }
+                        BACKLOG = Integer.parseInt(backlogString);
+                        i++;
+                        break;
+                    case "--metrics-port":
+                        if (i == args.length - 1) {
+                            argumentError("--metrics-port requires an integer argument between 1 and 65535");
+                        }
+                        String metricsPortString = args[i + 1];
+                        if (!metricsPortString.matches("[0-9]+")) {
+                            argumentError("--metrics-port requires an integer argument between 1 and 65535");
+                        }
+                        int metricsPort = Integer.parseInt(metricsPortString);
+                        if (metricsPort < 1 || metricsPort > 65535) {
+                            argumentError("--metrics-port requires an integer argument between 1 and 65535");
+                        }
+                        METRICS_PORT = metricsPort;
+                        i++;
+                        break;
+                    case "--control-port":
+                        if (i == args.length - 1) {
+                            argumentError("--control-port requires an integer argument between 1 and 65535");
+                        }
+                        String controlPortString = args[i + 1];
+                        if (!controlPortString.matches("[0-9]+")) {
+                            argumentError("--control-port requires an integer argument between 1 and 65535");
+                        }
+                        int controlPort = Integer.parseInt(controlPortString);
+                        if (controlPort < 1 || controlPort > 65535) {
+                            argumentError("--control-port requires an integer argument between 1 and 65535");
+                        }
+                        CONTROL_PORT = controlPort;
+                        i++;
+                        break;
+                    case "--control-address":
+                        if (i == args.length - 1) {
+                            argumentError("--control-address requires an address argument");
+                        }
+                        try {
+                            CONTROL_ADDRESS = InetAddress.getByName(args[i + 1]);
+                        } catch (UnknownHostException e) {
+                            argumentError("--control-address requires an address argument");
+                        }
+                        i++;
+                        break;
+                    case "--cluster-port":
+                        if (i == args.length - 1) {
+                            argumentError("--cluster-port requires an integer argument between 1 and 65535");
+                        }
+                        String clusterPortString = args[i + 1];
+                        if (!clusterPortString.matches("[0-9]+")) {
+                            argumentError("--cluster-port requires an integer argument between 1 and 65535");
+                        }
+                        int clusterPort = Integer.parseInt(clusterPortString);
+                        if (clusterPort < 1 || clusterPort > 65535) {
+                            argumentError("--cluster-port requires an integer argument between 1 and 65535");
+                        }
+                        CLUSTER_PORT = clusterPort;
+                        i++;
+                        break;
+                    case "--cluster-bind":
+                        if (i == args.length - 1) {
+                            argumentError("--cluster-bind requires an address argument");
+                        }
+                        try {
+                            CLUSTER_ADDRESS = InetAddress.getByName(args[i + 1]);
+                        } catch (UnknownHostException e) {
+                            argumentError("--cluster-bind requires an address argument");
+                        }
+                        i++;
+                        break;
+                    case "--cluster-secret":
+                        if (i == args.length - 1 || args[i + 1].isEmpty()) {
+                            argumentError("--cluster-secret requires a secret argument");
+                        }
+                        CLUSTER_SECRET = args[i + 1];
+                        i++;
+                        break;
+                    case "--peer":
+                        if (i == args.length - 1 || !args[i + 1].matches(".+:[0-9]+")) {
+                            argumentError("--peer requires a host:port argument");
+                        }
+                        PEERS.add(args[i + 1]);
+                        i++;
+                        break;
+                    case "--ring":
+                        if (i == args.length - 1) {
+                            argumentError("--ring requires a file argument");
+                        }
+                        RING_FILE = Paths.get(args[i + 1]);
+                        i++;
+                        break;
+                    case "--ring-self":
+                        if (i == args.length - 1 || !args[i + 1].matches(".+:[0-9]+")) {
+                            argumentError("--ring-self requires a host:port argument");
+                        }
+                        RING_SELF = args[i + 1];
+                        i++;
+                        break;
+                    case "--read-limit":
+                    case "--write-limit":
+                    case "--channel-limit":
+                    case "--global-limit":
+                        if (i == args.length - 1 || !args[i + 1].matches("[0-9]{1,15}(:[0-9]{1,15})?")) {
+                            argumentError(args[i] + " requires a BYTES_PER_SECOND[:BURST] argument");
+                        }
+                        String[] limit = args[i + 1].split(":");
+                        long rate = Long.parseLong(limit[0]);
+                        setLimit(TrafficShaper.Scope.valueOf(args[i].substring(2, args[i].indexOf('-', 2)).toUpperCase()),
+                                rate, limit.length > 1 ? Long.parseLong(limit[1]) : rate);
+                        i++;
+                        break;
+                    case "--takeover":
+                        if (i == args.length - 1) {
+                            argumentError("--takeover requires a socket path argument");
+                        }
+                        TAKEOVER_PATH = Paths.get(args[i + 1]);
+                        i++;
+                        break;
+                    case "--flush-messages":
+                        if (i == args.length - 1) {
+                            argumentError("--flush-messages requires an integer argument");
+                        }
+                        String flushMessagesString = args[i + 1];
+                        if (!flushMessagesString.matches("[0-9]+")) {
+                            argumentError("--flush-messages requires an integer argument");
+                        }
+                        FLUSH_MESSAGES = Integer.parseInt(flushMessagesString);
+                        i++;
+                        break;
+                    case "--flush-bytes":
+                        if (i == args.length - 1) {
+                            argumentError("--flush-bytes requires an integer argument");
+                        }
+                        String flushBytesString = args[i + 1];
+                        if (!flushBytesString.matches("[0-9]+")) {
+                            argumentError("--flush-bytes requires an integer argument");
+                        }
+                        FLUSH_BYTES = Integer.parseInt(flushBytesString);
+                        i++;
+                        break;
                 }
             }
         }
-        logger = new Logger(DAEMON);
-        if (DAEMON) {
-            System.out.println("Control server started on port 32565");
-        } else {
-            setIn(System.in);
+        if (WRITE_LOW_MARK > WRITE_HIGH_MARK) {
+            argumentError("--write-low-water must not be greater than --write-high-water");
+        }
+        if (DAEMON && CONTROL_PORT == 0) {
+            CONTROL_PORT = DEFAULT_CONTROL_PORT;
+        }
+        if (TAKEOVER_PATH != null && (TRANSPORT != Transport.EPOLL || !Transport.EPOLL.isAvailable())) {
+            argumentError("--takeover requires the epoll transport");
+        }
+        if ((CLUSTER_PORT > 0 || !PEERS.isEmpty()) && CLUSTER_SECRET == null) {
+            argumentError("--cluster-port and --peer require --cluster-secret, shared by every server of the cluster");
+        }
+        if (RING_FILE != null && RING_SELF == null) {
+            argumentError("--ring requires --ring-self, the address of this server as listed in the ring file");
+        }
+        logger = new Logger();
+        server = new MainServer(PORT, BACKLOG);
+        if (RING_FILE != null) {
+            try {
+                server.setRing(ChannelRing.load(RING_FILE, RING_SELF));
+                logger.logln("Loaded channel ring of " + server.getRing().getServers().size() + " servers from " + RING_FILE);
+            } catch (IOException e) {
+                logger.logln("Failed to load channel ring: " + e.getMessage());
+                logger.flush(1, TimeUnit.SECONDS);
+                System.exit(1);
+            }
         }
-        server = new MainServer(PORT);
         logger.logln("Starting bounce server on port [" + PORT + "]...");
-        ChannelFuture cf = server.listen();
+        ChannelFuture cf;
+        try {
+            cf = server.listen();
+        } catch (IOException e) {
+            logger.logln("Failed to take over from the previous server process: " + e.getMessage());
+            logger.flush(1, TimeUnit.SECONDS);
+            System.exit(1);
+            return;
+        }
         cf.addListener(future -> {
             logger.logln("Shutting down server");
+            logger.flush(1, TimeUnit.SECONDS);
             System.exit(0);
         });
         logger.logln("Server started. Waiting for connections");
 
-        executeCommands();
+        if (!DAEMON) {
+            readCommands();
+        }
     }
 }
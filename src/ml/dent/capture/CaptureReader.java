@@ -0,0 +1,146 @@
+package ml.dent.capture;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Dumps segment files written by {@link PacketCapture}.
+ * <p>
+ * Usage: {@code CaptureReader [--channel N] [--connection ID] [--direction in|out] [--raw] <segment file or directory>...}
+ * <p>
+ * By default every frame is printed as a header line followed by a hex dump. With --raw, only the captured bytes of
+ * the matching frames are written to stdout, which turns a filtered capture back into the original byte stream.
+ */
+public class CaptureReader {
+
+    private int     channel      = -1;
+    private int     connectionId = -1;
+    private byte    direction    = -1;
+    private boolean raw;
+
+    public static void main(String[] args) throws IOException {
+        CaptureReader reader = new CaptureReader();
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--channel":
+                    reader.channel = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--connection":
+                    reader.connectionId = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--direction":
+                    String direction = value(args, ++i);
+                    if (direction.equalsIgnoreCase("in")) {
+                        reader.direction = PacketCapture.DIRECTION_IN;
+                    } else if (direction.equalsIgnoreCase("out")) {
+                        reader.direction = PacketCapture.DIRECTION_OUT;
+                    } else {
+                        usage("Unknown direction " + direction);
+                    }
+                    break;
+                case "--raw":
+                    reader.raw = true;
+                    break;
+                default:
+                    paths.add(Paths.get(args[i]));
+            }
+        }
+        if (paths.isEmpty()) {
+            usage("No segment file or directory given");
+        }
+        for (Path path : expand(paths)) {
+            reader.read(path, System.out);
+        }
+        System.out.flush();
+    }
+
+    /**
+     * @return The value of the option before the given index
+     */
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            usage(args[i - 1] + " requires a value");
+        }
+        return args[i];
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: CaptureReader [--channel N] [--connection ID] [--direction in|out] [--raw] <segment file or directory>...");
+        System.exit(1);
+    }
+
+    private static List<Path> expand(List<Path> paths) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    List<Path> found = files.filter(p -> p.getFileName().toString().endsWith(".seg")).collect(Collectors.toList());
+                    Collections.sort(found);
+                    segments.addAll(found);
+                }
+            } else {
+                segments.add(path);
+            }
+        }
+        return segments;
+    }
+
+    private void read(Path path, PrintStream out) throws IOException {
+        MappedByteBuffer segment;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+             FileChannel fileChannel = file.getChannel()) {
+            segment = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        }
+        if (segment.remaining() < 8 || segment.getLong() != PacketCapture.MAGIC) {
+            System.err.println(path + ": not a capture segment");
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        while (segment.remaining() >= PacketCapture.FRAME_HEADER) {
+            int capturedLength = segment.getInt();
+            if (capturedLength == 0) {
+                break;
+            }
+            long timestamp = segment.getLong();
+            int frameConnection = segment.getInt();
+            int frameChannel = segment.getInt();
+            byte frameDirection = segment.get();
+            int length = segment.getInt();
+            byte[] bytes = new byte[capturedLength];
+            segment.get(bytes);
+
+            if ((channel != -1 && channel != frameChannel)
+                    || (connectionId != -1 && connectionId != frameConnection)
+                    || (direction != -1 && direction != frameDirection)) {
+                continue;
+            }
+            if (raw) {
+                out.write(bytes);
+            } else {
+                out.println(String.format("%s [id: %4d, channel: %4d] %s %d bytes%s",
+                        format.format(new Date(timestamp)), frameConnection, frameChannel,
+                        frameDirection == PacketCapture.DIRECTION_IN ? "IN " : "OUT", length,
+                        capturedLength < length ? " (truncated to " + capturedLength + ")" : ""));
+                out.println(ByteBufUtil.prettyHexDump(Unpooled.wrappedBuffer(bytes)));
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package ml.dent.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records forwarded packets into rotating memory-mapped segment files. Packets are handed to a writer thread as
+ * retained duplicates of the forwarded buffers, so the event loops never copy or format the data. When the writer
+ * cannot keep up, packets are dropped and counted. Every capture names its segments after the time it was started,
+ * so segments of earlier captures in the same directory are neither overwritten nor deleted.
+ * <p>
+ * Segment layout: the 8 byte {@link #MAGIC} followed by frames. Each frame is the captured length (int, 0 marks the
+ * end of the segment), a timestamp in milliseconds (long), the connection id (int), the channel number (int), the
+ * direction (byte), the original packet length (int), and the captured bytes.
+ */
+public class PacketCapture {
+
+    public static final long MAGIC = 0x4253434150303031L; // "BSCAP001"
+
+    public static final byte DIRECTION_IN  = 0;
+    public static final byte DIRECTION_OUT = 1;
+
+    static final int FRAME_HEADER = 4 + 8 + 4 + 4 + 1 + 4;
+
+    private static final int QUEUE_CAPACITY = 16384;
+
+    private static volatile PacketCapture active;
+
+    private Path dir;
+    private int  channel;
+    private int  segmentSize;
+    private int  maxSegments;
+
+    private Queue<Frame> queue = PlatformDependent.newFixedMpscQueue(QUEUE_CAPACITY);
+
+    private AtomicLong captured = new AtomicLong();
+    private AtomicLong dropped  = new AtomicLong();
+
+    private Thread           writer;
+    private volatile boolean running = true;
+    private volatile boolean writerParked;
+
+    /**
+     * The number of threads inside {@link #record}, so the writer knows when no more packets can be queued
+     */
+    private AtomicInteger recording = new AtomicInteger();
+
+    private MappedByteBuffer segment;
+    private String           prefix;
+    private int              segmentIndex;
+    private ArrayDeque<Path> segments = new ArrayDeque<>();
+
+    private PacketCapture(Path dir, int channel, int segmentSize, int maxSegments) {
+        this.dir = dir;
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.prefix = "capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + "-";
+    }
+
+    /**
+     * Starts capturing packets, replacing any capture already running
+     *
+     * @param dir         The directory segment files are written to
+     * @param channel     The channel number to capture, -1 for all channels
+     * @param segmentSize The size of each segment file in bytes
+     * @param maxSegments The number of segment files kept before the oldest is deleted
+     */
+    public static PacketCapture start(Path dir, int channel, int segmentSize, int maxSegments) throws IOException {
+        stop();
+        Files.createDirectories(dir);
+        PacketCapture capture = new PacketCapture(dir, channel, segmentSize, maxSegments);
+        capture.nextSegment();
+        capture.writer = new Thread(capture::drain, "packet-capture");
+        capture.writer.setDaemon(true);
+        capture.writer.start();
+        active = capture;
+        return capture;
+    }
+
+    /**
+     * Stops the running capture, if any, and waits until its writer has finished. Packets already queued are still
+     * written.
+     */
+    public static void stop() {
+        PacketCapture capture = active;
+        active = null;
+        if (capture != null) {
+            capture.running = false;
+            LockSupport.unpark(capture.writer);
+            try {
+                capture.writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return The running capture, or null if packets are not being captured
+     */
+    public static PacketCapture getActive() {
+        return active;
+    }
+
+    /**
+     * @return true if packets on the given channel are currently being captured
+     */
+    public static boolean isCapturing(int channelNumber) {
+        PacketCapture capture = active;
+        return capture != null && capture.matches(channelNumber);
+    }
+
+    public boolean matches(int channelNumber) {
+        return channel == -1 || channel == channelNumber;
+    }
+
+    /**
+     * Queues a packet to be captured. The buffer is not modified and its reference count is left unchanged.
+     */
+    public void record(int connectionId, int channelNumber, byte direction, ByteBuf buf) {
+        if (!matches(channelNumber)) {
+            return;
+        }
+        recording.incrementAndGet();
+        try {
+            if (!running) {
+                return;
+            }
+            Frame frame = new Frame(System.currentTimeMillis(), connectionId, channelNumber, direction, buf.retainedDuplicate());
+            if (!queue.offer(frame)) {
+                frame.buf.release();
+                dropped.incrementAndGet();
+                return;
+            }
+        } finally {
+            recording.decrementAndGet();
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Frame frame = queue.poll();
+                if (frame == null) {
+                    if (!running) {
+                        // A packet may still be queued by a thread that entered record() before the capture stopped
+                        if (recording.get() == 0 && queue.isEmpty()) {
+                            break;
+                        }
+                        Thread.yield();
+                        continue;
+                    }
+                    writerParked = true;
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    writerParked = false;
+                    continue;
+                }
+                try {
+                    write(frame);
+                } finally {
+                    frame.buf.release();
+                }
+            }
+            unmapSegment();
+        } catch (IOException e) {
+            e.printStackTrace();
+            running = false;
+            if (active == this) {
+                active = null;
+            }
+            unmapSegment();
+            while (recording.get() != 0 || !queue.isEmpty()) {
+                Frame frame = queue.poll();
+                if (frame != null) {
+                    frame.buf.release();
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        int length = frame.buf.readableBytes();
+        int capturedLength = Math.min(length, segmentSize - 8 - FRAME_HEADER - 4);
+        if (segment.remaining() < FRAME_HEADER + capturedLength + 4) {
+            nextSegment();
+        }
+        segment.putInt(capturedLength);
+        segment.putLong(frame.timestamp);
+        segment.putInt(frame.connectionId);
+        segment.putInt(frame.channel);
+        segment.put(frame.direction);
+        segment.putInt(length);
+        int limit = segment.limit();
+        segment.limit(segment.position() + capturedLength);
+        frame.buf.getBytes(frame.buf.readerIndex(), segment);
+        segment.limit(limit);
+        captured.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of the current segment and unmaps it right away instead of waiting for it to be garbage collected
+     */
+    private void unmapSegment() {
+        if (segment != null) {
+            if (segment.remaining() >= 4) {
+                segment.putInt(0);
+            }
+            PlatformDependent.freeDirectBuffer(segment);
+            segment = null;
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        unmapSegment();
+        Path path = dir.resolve(String.format("%s%06d.seg", prefix, segmentIndex++));
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel fileChannel = file.getChannel()) {
+            segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        segment.putLong(MAGIC);
+        segments.add(path);
+        while (segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.poll());
+        }
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return The number of packets written to segment files
+     */
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    /**
+     * @return The number of packets dropped because the writer could not keep up
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private static class Frame {
+        private long    timestamp;
+        private int     connectionId;
+        private int     channel;
+        private byte    direction;
+        private ByteBuf buf;
+
+        Frame(long timestamp, int connectionId, int channel, byte direction, ByteBuf buf) {
+            this.timestamp = timestamp;
+            this.connectionId = connectionId;
+            this.channel = channel;
+            this.direction = direction;
+            this.buf = buf;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package ml.dent.cluster;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import ml.dent.app.Logger;
+import ml.dent.connect.ConnectionManager;
+
+import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One persistent connection to another server in the cluster. All channels the two servers share are multiplexed
+ * over it as frames of {@code [int length][byte type][int channel][payload]}, where length covers everything after
+ * itself.
+ * <p>
+ * Each side first sends HELLO with its node id followed by the cluster secret, and closes the link if the other side
+ * sends anything else first or a different secret. After both sides sent HELLO, each side announces the channels it has members on with JOIN and
+ * LEAVE, and only sends DATA for channels the other side announced. PAUSE and RESUME carry backpressure: a server
+ * sends PAUSE while one of its own members on the channel is overloaded, and the receiving server stops reading from
+ * its members on that channel. A link that is itself not writable pauses every channel it carries on this side.
+ */
+class ClusterLink extends ChannelInboundHandlerAdapter {
+    private static Logger logger = Logger.getInstance();
+
+    static final byte HELLO  = 0;
+    static final byte JOIN   = 1;
+    static final byte LEAVE  = 2;
+    static final byte DATA   = 3;
+    static final byte PAUSE  = 4;
+    static final byte RESUME = 5;
+
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final int HEADER_LENGTH = 4 + 1 + 4;
+
+    private ClusterNode       node;
+    private ConnectionManager connectionManager;
+
+    /**
+     * The peer this link was opened for, or null if the other server connected to this one
+     */
+    private ClusterNode.Peer peer;
+
+    private Channel       channel;
+    private volatile long remoteNodeId;
+
+    /**
+     * Channels the other server has members on
+     */
+    private Set<Integer> remoteChannels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Channels the other server asked this one to pause
+     */
+    private Set<Integer> pausedByRemote = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Pause source used while this link is not writable, separate from the pauses the other server asked for
+     */
+    private final Object writabilityPause = new Object();
+
+    ClusterLink(ClusterNode node, ConnectionManager connectionManager, ClusterNode.Peer peer) {
+        this.node = node;
+        this.connectionManager = connectionManager;
+        this.peer = peer;
+    }
+
+    static LengthFieldBasedFrameDecoder newFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4);
+    }
+
+    long getRemoteNodeId() {
+        return remoteNodeId;
+    }
+
+    /**
+     * @return true if this server opened the link
+     */
+    boolean isOutbound() {
+        return peer != null;
+    }
+
+    SocketAddress remoteAddress() {
+        return channel.remoteAddress();
+    }
+
+    boolean isWritable() {
+        return channel.isWritable();
+    }
+
+    int getRemoteChannelCount() {
+        return remoteChannels.size();
+    }
+
+    boolean hasRemoteChannel(int channelNum) {
+        return remoteChannels.contains(channelNum);
+    }
+
+    void close() {
+        channel.close();
+    }
+
+    void sendControl(byte type, int channelNum) {
+        ByteBuf frame = channel.alloc().buffer(HEADER_LENGTH);
+        frame.writeInt(HEADER_LENGTH - 4).writeByte(type).writeInt(channelNum);
+        channel.writeAndFlush(frame, channel.voidPromise());
+    }
+
+    /**
+     * Sends the readable bytes of the given message without copying them. The message is not released.
+     */
+    void sendData(int channelNum, ByteBuf msg) {
+        ByteBuf header = channel.alloc().buffer(HEADER_LENGTH);
+        header.writeInt(HEADER_LENGTH - 4 + msg.readableBytes()).writeByte(DATA).writeInt(channelNum);
+        CompositeByteBuf frame = channel.alloc().compositeBuffer(2);
+        frame.addComponents(true, header, msg.retainedDuplicate());
+        // One write per frame, so frames written concurrently from several event loops are never interleaved
+        channel.writeAndFlush(frame, channel.voidPromise());
+    }
+
+    /**
+     * Applies the pauses this link holds for the given channel again, after the channel got a new group
+     */
+    void reapplyPauses(int channelNum) {
+        if (pausedByRemote.contains(channelNum)) {
+            connectionManager.setPeerPaused(this, channelNum, true);
+        }
+        if (remoteChannels.contains(channelNum) && !channel.isWritable()) {
+            connectionManager.setPeerPaused(writabilityPause, channelNum, true);
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        channel = ctx.channel();
+        byte[] secret = node.getSecret();
+        ByteBuf hello = ctx.alloc().buffer(HEADER_LENGTH + 8 + secret.length);
+        hello.writeInt(HEADER_LENGTH - 4 + 8 + secret.length).writeByte(HELLO).writeInt(0).writeLong(node.getNodeId())
+                .writeBytes(secret);
+        ctx.writeAndFlush(hello, ctx.voidPromise());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf frame = (ByteBuf) msg;
+        try {
+            byte type = frame.readByte();
+            int channelNum = frame.readInt();
+            if ((type != HELLO) == (remoteNodeId == 0)) {
+                throw new IllegalStateException(remoteNodeId == 0 ? "Frame of type " + type + " before HELLO" : "Repeated HELLO");
+            }
+            switch (type) {
+                case HELLO:
+                    long helloId = frame.readLong();
+                    byte[] secret = new byte[frame.readableBytes()];
+                    frame.readBytes(secret);
+                    // Compares every byte, so the time taken does not tell how much of a guess was right
+                    if (!MessageDigest.isEqual(secret, node.getSecret())) {
+                        logger.logln("Cluster link from " + ctx.channel().remoteAddress() + " sent the wrong secret, closing it");
+                        ctx.close();
+                        return;
+                    }
+                    remoteNodeId = helloId;
+                    if (peer != null) {
+                        peer.setNodeId(remoteNodeId);
+                    }
+                    if (!node.linkReady(this)) {
+                        ctx.close();
+                    }
+                    break;
+                case JOIN:
+                    remoteChannels.add(channelNum);
+                    if (!channel.isWritable()) {
+                        connectionManager.setPeerPaused(writabilityPause, channelNum, true);
+                    }
+                    break;
+                case LEAVE:
+                    remoteChannels.remove(channelNum);
+                    pausedByRemote.remove(channelNum);
+                    connectionManager.setPeerPaused(this, channelNum, false);
+                    connectionManager.setPeerPaused(writabilityPause, channelNum, false);
+                    break;
+                case DATA:
+                    connectionManager.deliverFromPeer(channelNum, frame.retainedSlice());
+                    break;
+                case PAUSE:
+                    pausedByRemote.add(channelNum);
+                    connectionManager.setPeerPaused(this, channelNum, true);
+                    break;
+                case RESUME:
+                    pausedByRemote.remove(channelNum);
+                    connectionManager.setPeerPaused(this, channelNum, false);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown frame type " + type);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        boolean writable = channel.isWritable();
+        for (int channelNum : remoteChannels) {
+            connectionManager.setPeerPaused(writabilityPause, channelNum, !writable);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        node.linkClosed(this);
+        for (int channelNum : remoteChannels) {
+            connectionManager.setPeerPaused(writabilityPause, channelNum, false);
+        }
+        for (int channelNum : pausedByRemote) {
+            connectionManager.setPeerPaused(this, channelNum, false);
+        }
+        remoteChannels.clear();
+        pausedByRemote.clear();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.logln(1, () -> "Cluster link to " + ctx.channel().remoteAddress() + " failed: " + cause.getMessage());
+        ctx.close();
+    }
+}
@@ -0,0 +1,54 @@
+package ml.dent.cluster;
+
+import java.net.SocketAddress;
+
+/**
+ * A snapshot of the state of one link to another server in the cluster
+ */
+public class ClusterLinkInfo {
+    private long          nodeId;
+    private SocketAddress address;
+    private boolean       outbound;
+    private int           channels;
+    private boolean       writable;
+
+    ClusterLinkInfo(long nodeId, SocketAddress address, boolean outbound, int channels, boolean writable) {
+        this.nodeId = nodeId;
+        this.address = address;
+        this.outbound = outbound;
+        this.channels = channels;
+        this.writable = writable;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return true if this server opened the link
+     */
+    public boolean isOutbound() {
+        return outbound;
+    }
+
+    /**
+     * @return The number of channels the other server has members on
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("node %016x at %s (%s), %d remote channels%s", nodeId, address,
+                outbound ? "outbound" : "inbound", channels, writable ? "" : ", not writable");
+    }
+}
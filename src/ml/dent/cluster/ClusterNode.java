@@ -0,0 +1,275 @@
+package ml.dent.cluster;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import ml.dent.app.Logger;
+import ml.dent.connect.ConnectionManager;
+import ml.dent.connect.GroupBridge;
+import ml.dent.net.Transport;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joins this server to a mesh of bounce servers. Every pair of servers shares at most one {@link ClusterLink}, and a
+ * channel with members on several servers is bridged over those links, so clients can join the same channel through
+ * any server.
+ * <p>
+ * Data received from a link is only delivered to local members and never forwarded to another link, so every pair
+ * of servers that share a channel needs a direct link. Either side of a pair may open the link; if both do, the link
+ * opened by the server with the lower node id is kept.
+ */
+public class ClusterNode implements GroupBridge {
+    private static Logger logger = Logger.getInstance();
+
+    private static final long RECONNECT_DELAY_MS = 2000;
+
+    private static final WriteBufferWaterMark LINK_WATER_MARK = new WriteBufferWaterMark(512 * 1024, 1024 * 1024);
+
+    private long nodeId;
+
+    /**
+     * Sent in HELLO, links from servers that do not know it are closed
+     */
+    private byte[] secret;
+
+    private ConnectionManager connectionManager;
+
+    private List<ClusterLink> links = new CopyOnWriteArrayList<>();
+    private List<Peer>        peers = new ArrayList<>();
+
+    /*
+     * The channels and overloaded channels last announced to the other servers. Guarded by this node's monitor, which
+     * also orders the announcements on every link.
+     */
+    private Set<Integer> announced       = new HashSet<>();
+    private Set<Integer> announcedPaused = new HashSet<>();
+
+    /**
+     * @param secret Shared by all servers of the cluster, which only accept links from servers that know it
+     */
+    public ClusterNode(ConnectionManager connectionManager, String secret) {
+        this.connectionManager = connectionManager;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        SecureRandom random = new SecureRandom();
+        do {
+            nodeId = random.nextLong();
+        } while (nodeId == 0);
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    byte[] getSecret() {
+        return secret;
+    }
+
+    /**
+     * Accepts links from other servers on the given address and port
+     */
+    public ChannelFuture listen(EventLoopGroup parentGroup, EventLoopGroup childGroup, Transport transport,
+                                InetAddress bindAddress, int bindPort) {
+        ServerBootstrap boot = new ServerBootstrap();
+        boot.group(parentGroup, childGroup).channel(transport.serverChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(ClusterLink.newFrameDecoder(), new ClusterLink(ClusterNode.this, connectionManager, null));
+                    }
+                }).childOption(ChannelOption.TCP_NODELAY, true).childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, LINK_WATER_MARK);
+        return boot.bind(bindAddress, bindPort);
+    }
+
+    /**
+     * Keeps a link open to the server at the given address, reconnecting whenever it is lost
+     */
+    public void connect(EventLoopGroup group, Transport transport, String host, int port) {
+        Peer peer = new Peer(host, port);
+        peers.add(peer);
+        peer.bootstrap = new Bootstrap().group(group).channel(transport.channelClass())
+                .option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, LINK_WATER_MARK)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(ClusterLink.newFrameDecoder(), new ClusterLink(ClusterNode.this, connectionManager, peer));
+                    }
+                });
+        peer.connect();
+    }
+
+    /**
+     * @return The links that are currently open
+     */
+    public List<ClusterLinkInfo> getLinks() {
+        List<ClusterLinkInfo> info = new ArrayList<>();
+        for (ClusterLink link : links) {
+            info.add(new ClusterLinkInfo(link.getRemoteNodeId(), link.remoteAddress(), link.isOutbound(),
+                    link.getRemoteChannelCount(), link.isWritable()));
+        }
+        return Collections.unmodifiableList(info);
+    }
+
+    /**
+     * Registers a link once the other server introduced itself, and announces the local channels on it
+     *
+     * @return false if the link should be closed, because it loops back to this server or duplicates another link
+     */
+    synchronized boolean linkReady(ClusterLink link) {
+        long remote = link.getRemoteNodeId();
+        if (remote == nodeId) {
+            logger.logln("Cluster link to " + link.remoteAddress() + " loops back to this server, closing it");
+            return false;
+        }
+        for (ClusterLink existing : links) {
+            if (existing.getRemoteNodeId() == remote) {
+                if (initiator(existing) <= initiator(link)) {
+                    return false;
+                }
+                links.remove(existing);
+                existing.close();
+            }
+        }
+        links.add(link);
+        for (int channelNum : announced) {
+            link.sendControl(ClusterLink.JOIN, channelNum);
+        }
+        for (int channelNum : announcedPaused) {
+            link.sendControl(ClusterLink.PAUSE, channelNum);
+        }
+        logger.logln("Cluster link to node " + Long.toHexString(remote) + " at " + link.remoteAddress() + " established");
+        return true;
+    }
+
+    private long initiator(ClusterLink link) {
+        return link.isOutbound() ? nodeId : link.getRemoteNodeId();
+    }
+
+    void linkClosed(ClusterLink link) {
+        if (links.remove(link)) {
+            logger.logln("Cluster link to node " + Long.toHexString(link.getRemoteNodeId()) + " at " + link.remoteAddress() + " closed");
+        }
+    }
+
+    boolean hasLink(long remoteNodeId) {
+        for (ClusterLink link : links) {
+            if (link.getRemoteNodeId() == remoteNodeId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void channelChanged(int channelNumber) {
+        boolean active = connectionManager.isChannelActive(channelNumber);
+        if (active == announced.contains(channelNumber)) {
+            return;
+        }
+        if (active) {
+            announced.add(channelNumber);
+            for (ClusterLink link : links) {
+                link.sendControl(ClusterLink.JOIN, channelNumber);
+                link.reapplyPauses(channelNumber);
+            }
+        } else {
+            announced.remove(channelNumber);
+            announcedPaused.remove(channelNumber);
+            for (ClusterLink link : links) {
+                link.sendControl(ClusterLink.LEAVE, channelNumber);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void channelOverloadChanged(int channelNumber) {
+        boolean overloaded = connectionManager.isChannelOverloaded(channelNumber);
+        if (overloaded == announcedPaused.contains(channelNumber) || !announced.contains(channelNumber)) {
+            return;
+        }
+        if (overloaded) {
+            announcedPaused.add(channelNumber);
+        } else {
+            announcedPaused.remove(channelNumber);
+        }
+        for (ClusterLink link : links) {
+            link.sendControl(overloaded ? ClusterLink.PAUSE : ClusterLink.RESUME, channelNumber);
+        }
+    }
+
+    @Override
+    public int forward(int channelNumber, ByteBuf msg) {
+        int sent = 0;
+        for (ClusterLink link : links) {
+            if (link.hasRemoteChannel(channelNumber)) {
+                link.sendData(channelNumber, msg);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * A server this one keeps a link open to
+     */
+    class Peer {
+        private String    host;
+        private int       port;
+        private Bootstrap bootstrap;
+
+        /**
+         * Learned from the first link, 0 until then
+         */
+        private volatile long nodeId;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void setNodeId(long nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        private void connect() {
+            bootstrap.connect(host, port).addListener((ChannelFuture future) -> {
+                if (!future.isSuccess()) {
+                    logger.logln(2, () -> "Failed to connect to cluster peer " + host + ":" + port + ": " + future.cause().getMessage());
+                    reconnectLater(future.channel().eventLoop());
+                    return;
+                }
+                future.channel().closeFuture().addListener(closed -> reconnectLater(future.channel().eventLoop()));
+            });
+        }
+
+        /**
+         * Reconnects after a delay, unless the link loops back to this server. While the other server keeps a link
+         * it opened itself, only checks again later.
+         */
+        private void reconnectLater(EventLoop loop) {
+            if (nodeId == ClusterNode.this.nodeId || loop.isShuttingDown()) {
+                return;
+            }
+            loop.schedule(() -> {
+                if (nodeId != 0 && hasLink(nodeId)) {
+                    reconnectLater(loop);
+                } else {
+                    connect();
+                }
+            }, RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
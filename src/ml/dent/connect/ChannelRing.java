@@ -0,0 +1,168 @@
+package ml.dent.connect;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Assigns every channel number to one server of a group of independent servers, using a consistent hash ring. Every
+ * server is placed on the ring at {@link #POINTS_PER_SERVER} pseudo-random points derived from its address, and a
+ * channel belongs to the server at the first point following the hash of the channel number. Adding or removing a
+ * server therefore only moves the channels between that server and its neighbours, and every server computes the
+ * same owner as long as they were given the same list of addresses, in any order.
+ * <p>
+ * A ring is immutable, so a lookup never takes a lock. Reloading creates a new ring.
+ */
+public class ChannelRing {
+
+    public static final int POINTS_PER_SERVER = 128;
+
+    private List<String> servers;
+    private String       self;
+
+    /*
+     * The sorted hashes of all points, and the index into servers of the server each point belongs to
+     */
+    private long[] points;
+    private int[]  owners;
+
+    /**
+     * @param servers The addresses clients use to reach each server of the ring, as host:port
+     * @param self    The address of this server, which may be missing from the ring to move all channels away
+     */
+    public ChannelRing(List<String> servers, String self) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("A channel ring requires at least one server");
+        }
+        this.servers = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(servers)));
+        this.self = self;
+
+        int count = this.servers.size() * POINTS_PER_SERVER;
+        long[] entries = new long[count];
+        for (int s = 0; s < this.servers.size(); s++) {
+            for (int p = 0; p < POINTS_PER_SERVER; p++) {
+                entries[s * POINTS_PER_SERVER + p] = hash(this.servers.get(s) + "#" + p);
+            }
+        }
+        // Sort the points and carry the owners along, ties broken by address so the order does not depend on input
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Long.compareUnsigned(entries[a], entries[b]);
+            return cmp != 0 ? cmp : this.servers.get(a / POINTS_PER_SERVER).compareTo(this.servers.get(b / POINTS_PER_SERVER));
+        });
+        points = new long[count];
+        owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = entries[order[i]];
+            owners[i] = order[i] / POINTS_PER_SERVER;
+        }
+    }
+
+    /**
+     * Reads a ring from a file listing one host:port per line. Blank lines and lines starting with # are ignored.
+     */
+    public static ChannelRing load(Path file, String self) throws IOException {
+        List<String> servers = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (!line.matches(".+:[0-9]+")) {
+                throw new IOException("Expected host:port in " + file + ", found \"" + line + "\"");
+            }
+            servers.add(line);
+        }
+        if (servers.isEmpty()) {
+            throw new IOException("No servers listed in " + file);
+        }
+        return new ChannelRing(servers, self);
+    }
+
+    /**
+     * @return The address of the server that owns the given channel
+     */
+    public String ownerOf(int channelNum) {
+        long hash = mix(channelNum);
+        int low = 0;
+        int high = points.length;
+        // Find the first point at or after the hash, wrapping around to the first point
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[mid], hash) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return servers.get(owners[low == points.length ? 0 : low]);
+    }
+
+    /**
+     * @return The address clients of the given channel should be sent to, or null if this server owns it
+     */
+    public String redirectFor(int channelNum) {
+        String owner = ownerOf(channelNum);
+        return owner.equals(self) ? null : owner;
+    }
+
+    public List<String> getServers() {
+        return servers;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * @return true if this server is one of the servers of the ring
+     */
+    public boolean containsSelf() {
+        return servers.contains(self);
+    }
+
+    /**
+     * @return The number of channels out of the first channelCount each server owns, in the order of
+     * {@link #getServers()}
+     */
+    public int[] distribution(int channelCount) {
+        int[] counts = new int[servers.size()];
+        for (int c = 0; c < channelCount; c++) {
+            counts[servers.indexOf(ownerOf(c))]++;
+        }
+        return counts;
+    }
+
+    /**
+     * 64 bit FNV-1a, finished with {@link #mix(long)} so that similar addresses spread over the whole ring
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * The MurmurHash3 finalizer
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
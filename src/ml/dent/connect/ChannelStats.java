@@ -0,0 +1,56 @@
+package ml.dent.connect;
+
+/**
+ * A snapshot of the state of one active connection group
+ */
+public class ChannelStats {
+    private int          channelNumber;
+    private int          members;
+    private int          overloaded;
+    private long         queued;
+    private TrafficStats traffic;
+
+    ChannelStats(int channelNumber, int members, int overloaded, long queued, TrafficStats traffic) {
+        this.channelNumber = channelNumber;
+        this.members = members;
+        this.overloaded = overloaded;
+        this.queued = queued;
+        this.traffic = traffic;
+    }
+
+    public int getChannelNumber() {
+        return channelNumber;
+    }
+
+    public int getMembers() {
+        return members;
+    }
+
+    /**
+     * @return true if reading is paused in this group because a member is overloaded
+     */
+    public boolean isPaused() {
+        return overloaded > 0;
+    }
+
+    /**
+     * @return The number of members that were not writable when the snapshot was taken
+     */
+    public int getOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * @return The number of bytes waiting in the outbound buffers of the members when the snapshot was taken
+     */
+    public long getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return The live counters of this group
+     */
+    public TrafficStats getTraffic() {
+        return traffic;
+    }
+}
@@ -0,0 +1,86 @@
+package ml.dent.connect;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A sparse table from int keys in {@code [0, capacity)} to values, safe for concurrent use without locks.
+ * <p>
+ * Keys are split into a page index and an offset. Pages of 4096 slots are only allocated the first time a key in
+ * their range is written, so memory grows with the keys in use rather than with the capacity. Lookups are two array
+ * reads. Pages are kept once allocated, so a slot never moves and can always be updated with compare-and-set.
+ */
+class ConcurrentIntTable<T> {
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final int                                           capacity;
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> pages;
+
+    ConcurrentIntTable(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative");
+        }
+        this.capacity = capacity;
+        this.pages = new AtomicReferenceArray<>((int) (((long) capacity + PAGE_SIZE - 1) >>> PAGE_BITS));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The value stored under the given key, or null if there is none or the key is out of range
+     */
+    T get(int key) {
+        if (key < 0 || key >= capacity) {
+            return null;
+        }
+        AtomicReferenceArray<T> page = pages.get(key >>> PAGE_BITS);
+        return page == null ? null : page.get(key & PAGE_MASK);
+    }
+
+    /**
+     * Atomically replaces the value under the given key if it is currently {@code expect}. A null {@code expect}
+     * matches an empty slot.
+     *
+     * @return true if the value was replaced
+     */
+    boolean compareAndSet(int key, T expect, T update) {
+        if (key < 0 || key >= capacity) {
+            throw new IndexOutOfBoundsException("Key " + key + " is outside of [0, " + capacity + ")");
+        }
+        AtomicReferenceArray<T> page = pages.get(key >>> PAGE_BITS);
+        if (page == null) {
+            if (update == null) {
+                return expect == null;
+            }
+            page = new AtomicReferenceArray<>(PAGE_SIZE);
+            if (!pages.compareAndSet(key >>> PAGE_BITS, null, page)) {
+                page = pages.get(key >>> PAGE_BITS);
+            }
+        }
+        return page.compareAndSet(key & PAGE_MASK, expect, update);
+    }
+
+    /**
+     * Calls the given action for every value in the table in key order. Values added or removed while iterating may
+     * or may not be seen.
+     */
+    void forEach(Consumer<? super T> action) {
+        for (int i = 0; i < pages.length(); i++) {
+            AtomicReferenceArray<T> page = pages.get(i);
+            if (page == null) {
+                continue;
+            }
+            for (int j = 0; j < PAGE_SIZE; j++) {
+                T value = page.get(j);
+                if (value != null) {
+                    action.accept(value);
+                }
+            }
+        }
+    }
+}
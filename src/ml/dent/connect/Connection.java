@@ -1,27 +1,51 @@
 package ml.dent.connect;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.DefaultMessageSizeEstimator;
+import io.netty.channel.MessageSizeEstimator;
+import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
 import ml.dent.app.Logger;
 import ml.dent.app.Main;
 
 import java.net.SocketAddress;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class Connection {
     private static Logger logger = Logger.getInstance();
 
+    /**
+     * The connection bound to a channel, so that the forwarding path never has to look it up by address
+     */
+    public static final AttributeKey<Connection> CONNECTION = AttributeKey.valueOf("connection");
+
     private Channel channel;
 
+    private ConnectionGroup group;
+
+    /**
+     * Reasons reading from a connection may be paused, combined as a bit mask
+     */
+    static final int PAUSED_BY_GROUP  = 1;
+    static final int PAUSED_BY_BUDGET = 2;
+    static final int PAUSED_BY_HANDOFF = 4;
+    static final int PAUSED_BY_SHAPING = 8;
+
     public enum State {
         CONNECTED,
         AUTHENTICATED,
         READY,
-        WAITING
+        WAITING,
+        /**
+         * Sent to the server that owns its channel, and closed
+         */
+        REDIRECTED
     }
 
     /**
@@ -29,22 +53,75 @@ public class Connection {
      * implicitly CONNECTED, if it NEGOTIATING, it has authenticated,
      * and if it is ready,it has successfully negotiated
      */
-    private State state;
+    private volatile State state;
 
     private int channelNumber;
     private int id;
 
+    /**
+     * Set during the handshake if the client sends length-prefixed frames
+     */
+    private volatile boolean framed;
+
+    /**
+     * Scheduled on this connection's own event loop so that no extra threads are created per connection
+     */
+    private ScheduledFuture<?> authTimeout;
+
+    /*
+     * Peers this connection has forwarded to without flushing, used when flush batching is enabled. Only touched
+     * from this connection's event loop.
+     */
+    private ArrayList<Connection> unflushedPeers = new ArrayList<>(2);
+    private int                   unflushedMessages;
+    private long                  unflushedBytes;
+
+    /*
+     * Backpressure state, only touched from this connection's event loop. overloaded is set while this connection
+     * is not writable, pausedBy holds the reasons reading from this connection is currently paused.
+     */
+    private boolean overloaded;
+    private int     pausedBy;
+
+    /*
+     * Bytes received after the handshake. Only written from this connection's event loop, the sample fields are
+     * only touched by the outbound budget.
+     */
+    private volatile long received;
+    private long          receivedAtSample;
+    private long          receivedSinceSample;
+
+    /*
+     * Token buckets of the traffic shaper, created when first needed. The write bucket is charged by every sender in
+     * this connection's group.
+     */
+    private          TokenBucket readBucket;
+    private volatile TokenBucket writeBucket;
+
+    /*
+     * Pieces of data splice(2) handed to this connection for sending, counted as they pass the message size estimator,
+     * and the count of the peer this connection splices to as of its last read. Only touched from the group's event
+     * loop.
+     */
+    private long splicedOut;
+    private long peerSplicedAtRead = -1;
+
     public Connection(Channel channel) {
         this.channel = channel;
         this.channelNumber = -1;
         this.id = -1;
         state = State.CONNECTED;
-        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
-        scheduler.schedule(() -> {
-            if (state == State.CONNECTED) {
+        channel.attr(CONNECTION).set(this);
+        if (Main.getSplice()) {
+            // Must be set before the first write, the pipeline keeps the handle it gets then
+            channel.config().setMessageSizeEstimator(new SpliceCounter());
+        }
+        authTimeout = channel.eventLoop().schedule(() -> {
+            // A connection being handed to a new server process gets a new timeout there
+            if (state == State.CONNECTED && (pausedBy & PAUSED_BY_HANDOFF) == 0) {
                 close("Did not receive authentication");
             }
-        }, 5, TimeUnit.SECONDS);
+        }, Main.getAuthTimeout(), TimeUnit.SECONDS);
     }
 
     public void write(String msg) {
@@ -55,10 +132,72 @@ public class Connection {
         channel.writeAndFlush(msg, channel.voidPromise());
     }
 
+    /**
+     * Queues the given message on this connection without flushing it. The sender is responsible for flushing
+     * this connection later through {@link #flushPeers()}.
+     *
+     * @param sender The connection the message was received from
+     */
+    void forward(Connection sender, Object msg, int size) {
+        channel.write(msg, channel.voidPromise());
+        sender.markUnflushed(this, size);
+    }
+
+    private void markUnflushed(Connection peer, int size) {
+        if (!unflushedPeers.contains(peer)) {
+            unflushedPeers.add(peer);
+        }
+        unflushedMessages++;
+        unflushedBytes += size;
+        if (unflushedMessages >= Main.getFlushMessages() || unflushedBytes >= Main.getFlushBytes()) {
+            flushPeers();
+        }
+    }
+
+    /**
+     * Flushes every peer this connection has forwarded data to since the last flush. Must be called from this
+     * connection's event loop, normally when a read batch completes.
+     */
+    public void flushPeers() {
+        if (unflushedPeers.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < unflushedPeers.size(); i++) {
+            unflushedPeers.get(i).channel.flush();
+        }
+        unflushedPeers.clear();
+        unflushedMessages = 0;
+        unflushedBytes = 0;
+    }
+
+    /**
+     * @return The number of bytes written to this connection that have not been sent yet, including writes still
+     * on their way from other event loops
+     */
+    long getQueuedBytes() {
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
     public Channel getChannel() {
         return channel;
     }
 
+    long getSplicedOut() {
+        return splicedOut;
+    }
+
+    /**
+     * Remembers how much the given peer had been handed by splice(2) at this read of this connection
+     *
+     * @return true if nothing was spliced to the peer since the previous call
+     */
+    boolean markSplicedTo(Connection peer) {
+        long previous = peerSplicedAtRead;
+        peerSplicedAtRead = peer.splicedOut;
+        return previous == peerSplicedAtRead;
+    }
+
     public SocketAddress remoteAddress() {
         return channel.remoteAddress();
     }
@@ -68,10 +207,86 @@ public class Connection {
     }
 
     public void setState(State newState) {
-        if (Main.getVerbosity() >= 2) {
-            logger.logln(remoteAddress() + " changed state to " + newState);
-        }
+        logger.logln(2, () -> remoteAddress() + " changed state to " + newState);
         state = newState;
+        if (newState != State.CONNECTED && authTimeout != null) {
+            authTimeout.cancel(false);
+            authTimeout = null;
+        }
+    }
+
+    void addReceived(int bytes) {
+        received += bytes;
+    }
+
+    void sampleReceived() {
+        long current = received;
+        receivedSinceSample = current - receivedAtSample;
+        receivedAtSample = current;
+    }
+
+    long getReceivedSinceSample() {
+        return receivedSinceSample;
+    }
+
+    boolean isOverloaded() {
+        return overloaded;
+    }
+
+    void setOverloaded(boolean overloaded) {
+        this.overloaded = overloaded;
+    }
+
+    /**
+     * Adds or removes a reason for pausing reads from this connection. Reading only resumes once no reasons are left.
+     * Must be called from this connection's event loop.
+     */
+    void setPaused(int reason, boolean paused) {
+        int previous = pausedBy;
+        pausedBy = paused ? previous | reason : previous & ~reason;
+        if ((previous == 0) == (pausedBy == 0)) {
+            return;
+        }
+        channel.config().setAutoRead(pausedBy == 0);
+        if (state == State.READY || state == State.WAITING) {
+            setState(pausedBy == 0 ? State.READY : State.WAITING);
+        }
+    }
+
+    /**
+     * Sets auto read from the pause reasons again. Splicing turns auto read off and on by itself while the receiving
+     * member cannot take more data, without regard to why this connection is paused.
+     */
+    void restorePaused() {
+        channel.config().setAutoRead(pausedBy == 0);
+    }
+
+    boolean isPausedBy(int reason) {
+        return (pausedBy & reason) != 0;
+    }
+
+    TokenBucket getReadBucket() {
+        return readBucket;
+    }
+
+    void setReadBucket(TokenBucket readBucket) {
+        this.readBucket = readBucket;
+    }
+
+    TokenBucket getWriteBucket() {
+        return writeBucket;
+    }
+
+    void setWriteBucket(TokenBucket writeBucket) {
+        this.writeBucket = writeBucket;
+    }
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    public void setFramed(boolean framed) {
+        this.framed = framed;
     }
 
     public void setChannelNumber(int channel) {
@@ -82,6 +297,17 @@ public class Connection {
         return channelNumber;
     }
 
+    void setGroup(ConnectionGroup group) {
+        this.group = group;
+    }
+
+    /**
+     * @return The group this connection was added to, or null if it has not negotiated a channel yet
+     */
+    ConnectionGroup getGroup() {
+        return group;
+    }
+
     public void setId(int id) {
         this.id = id;
     }
@@ -97,14 +323,24 @@ public class Connection {
         return channel.closeFuture();
     }
 
-    private String closeReason = "Closed by remote host";
+    private volatile String closeReason = "Closed by remote host";
 
+    /**
+     * Closes this connection, unless it is already closed. Writes that fail because the connection was closed keep
+     * the original reason.
+     */
     public void close(String closeReason) {
-        this.closeReason = closeReason;
+        if (channel.isOpen()) {
+            this.closeReason = closeReason;
+        }
         close();
     }
 
     public void close() {
+        if (authTimeout != null) {
+            authTimeout.cancel(false);
+            authTimeout = null;
+        }
         channel.close();
     }
 
@@ -113,23 +349,29 @@ public class Connection {
     }
 
     @Override
-    public int hashCode() {
-        return remoteAddress().hashCode();
+    public String toString() {
+        String info = String.format("[id: %4d, channel: %4d]", getId(), getChannelNumber());
+        return remoteAddress().toString() + " - " + info + ": (" + state + ")";
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        if (obj instanceof Connection) {
-            Connection o = (Connection) obj;
-            return remoteAddress().equals(o.remoteAddress());
-        } else {
-            return false;
+    /**
+     * Sizes messages like Netty's default estimator, and counts the pieces of data splice(2) writes to this
+     * connection, which are the only messages that are not buffers
+     */
+    private class SpliceCounter implements MessageSizeEstimator, MessageSizeEstimator.Handle {
+        private MessageSizeEstimator.Handle sizes = DefaultMessageSizeEstimator.DEFAULT.newHandle();
+
+        @Override
+        public MessageSizeEstimator.Handle newHandle() {
+            return this;
         }
-    }
 
-    @Override
-    public String toString() {
-        String info = String.format("[id: %4d, channel: %4d]", getId(), getChannelNumber());
-        return remoteAddress().toString() + " - " + info + ": (" + state + ")";
+        @Override
+        public int size(Object msg) {
+            if (!(msg instanceof ByteBuf)) {
+                splicedOut++;
+            }
+            return sizes.size(msg);
+        }
     }
-}
\ No newline at end of file
+}
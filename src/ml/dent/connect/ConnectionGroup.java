@@ -0,0 +1,538 @@
+package ml.dent.connect;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
+import io.netty.util.ReferenceCountUtil;
+import ml.dent.app.Logger;
+import ml.dent.app.Main;
+import ml.dent.capture.PacketCapture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A class that links two connections in software
+ */
+class ConnectionGroup {
+    private static Logger logger = Logger.getInstance();
+
+    /**
+     * The TCP state of an open connection, from the kernel's tcp_states.h
+     */
+    private static final int TCP_ESTABLISHED = 1;
+
+    /**
+     * Replaced as a whole under this group's monitor whenever a member joins or leaves, so forwarding walks a plain
+     * array without locking
+     */
+    private volatile Connection[] members = new Connection[0];
+
+    /**
+     * Overrides the default slow member policy for this channel, null to follow the default
+     */
+    private volatile SlowMemberPolicy policy;
+
+    /**
+     * Number of members that are currently not writable. Every other member is paused while this is non-zero.
+     */
+    private AtomicInteger overloaded = new AtomicInteger();
+
+    /**
+     * Reasons other servers in the cluster asked this group to stop reading. Every member is paused while this is not
+     * empty.
+     */
+    private Set<Object> peerPauses = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Forwards data to the same channel on other servers, null when clustering is disabled. Set before the group is
+     * published.
+     */
+    private GroupBridge bridge;
+
+    private int channelNumber;
+    private int maxConnections;
+
+    private TrafficStats stats = new TrafficStats();
+
+    /**
+     * Shared by all members for the channel limit of the traffic shaper, created when first needed
+     */
+    private volatile TokenBucket bucket;
+
+    /**
+     * The event loop all members are moved to when group affinity is enabled, otherwise null
+     */
+    private EventLoop eventLoop;
+
+    /**
+     * The pending chunk of each direction currently being spliced in the kernel, and the TCP state of a member read
+     * into a reused object. Only touched from the group's event loop.
+     */
+    private ArrayList<ChannelPromise> splices = new ArrayList<>();
+    private EpollTcpInfo              tcpInfo;
+
+    /**
+     * Set once the last member has left. A retired group accepts no new members and is replaced by a new group the
+     * next time its channel is joined. Guarded by this group's monitor.
+     */
+    private boolean retired;
+
+    private Consumer<ConnectionGroup> retireListener;
+
+    public ConnectionGroup(int channelNumber, int maxConnections) {
+        this(channelNumber, maxConnections, null, null);
+    }
+
+    public ConnectionGroup(int channelNumber, int maxConnections, EventLoop eventLoop) {
+        this(channelNumber, maxConnections, eventLoop, null);
+    }
+
+    /**
+     * @param retireListener called once, after the last member of this group has left
+     */
+    public ConnectionGroup(int channelNumber, int maxConnections, EventLoop eventLoop, Consumer<ConnectionGroup> retireListener) {
+        this.channelNumber = channelNumber;
+        this.maxConnections = maxConnections;
+        this.eventLoop = eventLoop;
+        this.retireListener = retireListener;
+    }
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    public int getChannelNumber() {
+        return channelNumber;
+    }
+
+    public TrafficStats getStats() {
+        return stats;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    Connection[] getMembers() {
+        return members;
+    }
+
+    void setPolicy(SlowMemberPolicy policy) {
+        this.policy = policy;
+        policyChanged();
+    }
+
+    /**
+     * Applies a change of the policy in effect to members that are already slow. Under the pause policy, members that
+     * are not writable start holding the other members, and under the other policies, no member holds the others any
+     * longer.
+     */
+    void policyChanged() {
+        for (Connection member : members) {
+            recheckOverloaded(member);
+        }
+    }
+
+    private void recheckOverloaded(Connection member) {
+        EventLoop loop = member.getChannel().eventLoop();
+        if (!loop.inEventLoop()) {
+            loop.execute(() -> recheckOverloaded(member));
+        } else if (getPolicy() != SlowMemberPolicy.PAUSE) {
+            channelReady(member);
+        } else if (!member.getChannel().isWritable()) {
+            channelOverloaded(member);
+        }
+    }
+
+    /**
+     * @return The slow member policy in effect for this group
+     */
+    public SlowMemberPolicy getPolicy() {
+        SlowMemberPolicy current = policy;
+        return current != null ? current : Main.getSlowPolicy();
+    }
+
+    TokenBucket getBucket() {
+        return bucket;
+    }
+
+    void setBucket(TokenBucket bucket) {
+        this.bucket = bucket;
+    }
+
+    /**
+     * @return true if reading is paused in this group because a member is overloaded
+     */
+    public boolean isPaused() {
+        return overloaded.get() > 0 || !peerPauses.isEmpty();
+    }
+
+    /**
+     * @return The number of members that are currently not writable
+     */
+    public int getOverloadedCount() {
+        return overloaded.get();
+    }
+
+    /**
+     * @return The number of bytes waiting in the outbound buffers of the members. Reads one counter per member.
+     */
+    public long getQueuedBytes() {
+        long queued = 0;
+        for (Connection connection : members) {
+            queued += connection.getQueuedBytes();
+        }
+        return queued;
+    }
+
+    void setBridge(GroupBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    public synchronized boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * @return false if this group has already been retired, in which case the connection was not added
+     * @throws IllegalArgumentException if the group is full, or its members use a different framing mode
+     */
+    public boolean addConnection(Connection n) throws IllegalArgumentException {
+        synchronized (this) {
+            if (retired) {
+                return false;
+            }
+            if (members.length >= maxConnections) {
+                throw new IllegalArgumentException("Connection Group Full");
+            }
+            // Raw data would break the frames of framed members, so a channel only has members of one mode
+            if (members.length > 0 && members[0].isFramed() != n.isFramed()) {
+                throw new IllegalArgumentException("Channel uses a different framing mode");
+            }
+            n.closeFuture().addListener(future -> removeConnection(n));
+            Connection[] added = Arrays.copyOf(members, members.length + 1);
+            added[members.length] = n;
+            members = added;
+            n.setGroup(this);
+        }
+        if (isPaused()) {
+            updatePaused(n);
+        }
+        return true;
+    }
+
+    private void removeConnection(Connection n) {
+        removeMember(n);
+        channelReady(n);
+        retireIfEmpty();
+    }
+
+    /**
+     * Retires this group if it has no members, which also covers a group whose only joining connection was closed
+     * before it became a member
+     */
+    void retireIfEmpty() {
+        boolean retire;
+        synchronized (this) {
+            retire = members.length == 0 && !retired;
+            retired |= retire;
+        }
+        if (retire && retireListener != null) {
+            retireListener.accept(this);
+        }
+    }
+
+    /**
+     * @return false if the given connection was not a member
+     */
+    private synchronized boolean removeMember(Connection n) {
+        Connection[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == n) {
+                Connection[] removed = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+                members = removed;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the given message to the other connections. Every receiver gets its own duplicate of the message, so
+     * receivers on different event loops never share a reader index. Receivers that are too slow are skipped or
+     * disconnected, depending on the slow member policy.
+     */
+    public void write(Connection incoming, Object msg) {
+        try {
+            if (Main.getVerboseChannel() == incoming.getChannelNumber() && Main.getVerbosity() >= 3) {
+                logger.logln(incoming + ": " + msg);
+                if (Main.getVerbosity() >= 4) {
+                    ByteBuf buf = (ByteBuf) msg;
+                    byte[] bytes = new byte[buf.readableBytes()];
+                    buf.getBytes(buf.readerIndex(), bytes);
+                    logger.logln(Arrays.toString(bytes));
+                }
+            }
+            Connection[] receivers = members;
+            PacketCapture capture = PacketCapture.getActive();
+            if (capture != null && capture.matches(incoming.getChannelNumber())) {
+                for (Connection connection : receivers) {
+                    if (connection != incoming || Main.getEcho()) {
+                        capture.record(connection.getId(), connection.getChannelNumber(), PacketCapture.DIRECTION_OUT, (ByteBuf) msg);
+                    }
+                }
+            }
+            ByteBuf buf = (ByteBuf) msg;
+            int size = buf.readableBytes();
+            int sent = 0;
+            if (bridge != null) {
+                sent += bridge.forward(channelNumber, buf);
+            }
+            boolean echo = Main.getEcho();
+            boolean batching = Main.getFlushBatching();
+            SlowMemberPolicy slowPolicy = getPolicy();
+            for (Connection connection : receivers) {
+                if (connection == incoming && !echo) {
+                    continue;
+                }
+                if (slowPolicy != SlowMemberPolicy.PAUSE && connection.getQueuedBytes() > Main.getSlowQueue()) {
+                    handleSlowMember(connection, slowPolicy);
+                    continue;
+                }
+                if (batching) {
+                    connection.forward(incoming, buf.retainedDuplicate(), size);
+                } else {
+                    connection.write(buf.retainedDuplicate());
+                }
+                sent++;
+            }
+            stats.recordForward(size, sent);
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * Writes data received from another server in the cluster to every member
+     */
+    public void writeFromPeer(ByteBuf msg) {
+        try {
+            Connection[] receivers = members;
+            PacketCapture capture = PacketCapture.getActive();
+            if (capture != null && capture.matches(channelNumber)) {
+                for (Connection connection : receivers) {
+                    capture.record(connection.getId(), channelNumber, PacketCapture.DIRECTION_OUT, msg);
+                }
+            }
+            int size = msg.readableBytes();
+            int sent = 0;
+            SlowMemberPolicy slowPolicy = getPolicy();
+            for (Connection connection : receivers) {
+                if (slowPolicy != SlowMemberPolicy.PAUSE && connection.getQueuedBytes() > Main.getSlowQueue()) {
+                    handleSlowMember(connection, slowPolicy);
+                    continue;
+                }
+                connection.write(msg.retainedDuplicate());
+                sent++;
+            }
+            stats.recordForward(size, sent);
+        } finally {
+            msg.release();
+        }
+    }
+
+    /**
+     * Drops the current message for a member whose queue is over the slow queue limit, or disconnects it. A member
+     * being disconnected stops receiving right away, the rest of its removal happens once it has closed.
+     */
+    private void handleSlowMember(Connection slow, SlowMemberPolicy slowPolicy) {
+        if (slowPolicy == SlowMemberPolicy.DROP) {
+            stats.recordDrop();
+        } else if (removeMember(slow)) {
+            stats.recordSlowDisconnect();
+            slow.close("Too slow to keep up with its channel");
+        }
+    }
+
+    /**
+     * Starts moving data between the two members of this group with splice(2), if splicing is enabled and the group
+     * qualifies. Data is spliced in chunks of at most the splice chunk size, and whether to go on splicing is only
+     * decided when a chunk completes. Netty cannot cancel a pending chunk, so once the group stops qualifying, it
+     * falls back to the normal forwarding path at the end of the current chunk, which may take until an idle member
+     * sends again. For the same reason, when one member leaves while splicing, the other member is disconnected as
+     * well. Must be called from the group's event loop.
+     */
+    void trySplice() {
+        if (!splices.isEmpty() || !canSplice()) {
+            return;
+        }
+        Connection[] pair = members;
+        splice(pair[0], pair[1]);
+        splice(pair[1], pair[0]);
+    }
+
+    private void splice(Connection from, Connection to) {
+        AbstractEpollStreamChannel in = (AbstractEpollStreamChannel) from.getChannel();
+        AbstractEpollStreamChannel out = (AbstractEpollStreamChannel) to.getChannel();
+        ChannelPromise promise = in.newPromise();
+        splices.add(promise);
+        promise.addListener(future -> {
+            splices.remove(promise);
+            // Pauses that changed during the chunk may have been overridden by the splice itself
+            from.restorePaused();
+            if (!future.isSuccess()) {
+                // The chunk pending in the other direction cannot be taken back, so the remaining member would keep
+                // splicing into a closed connection
+                to.close("Other member left while splicing");
+            } else if (canSplice()) {
+                splice(from, to);
+            } else if (splices.isEmpty()) {
+                logger.logln(3, () -> "Channel " + channelNumber + " stopped splicing");
+            }
+        });
+        in.spliceTo(out, Main.getSpliceChunk(), promise);
+    }
+
+    /**
+     * Closes a member whose client has closed the connection while a chunk was being spliced from it, once everything
+     * it sent has been spliced. Netty cannot tell the end of the stream from a socket that is merely empty while
+     * splicing, so the member would otherwise stay open and wake its event loop again and again. Every such wakeup
+     * completes a read, so this is checked at the end of each read: a member whose client has closed its side reached
+     * the end once a read hands nothing to the other member while that member has nothing queued. Must be called from
+     * the group's event loop.
+     */
+    void readComplete(Connection member) {
+        Connection[] pair = members;
+        // With fewer members, the pending chunks fail and close the remaining member
+        if (splices.isEmpty() || pair.length != 2 || !(member.getChannel() instanceof EpollSocketChannel)) {
+            return;
+        }
+        if (tcpInfo == null) {
+            tcpInfo = new EpollTcpInfo();
+        }
+        if (((EpollSocketChannel) member.getChannel()).tcpInfo(tcpInfo).state() == TCP_ESTABLISHED) {
+            return;
+        }
+        Connection peer = pair[0] == member ? pair[1] : pair[0];
+        if (member.markSplicedTo(peer) && peer.getQueuedBytes() == 0) {
+            member.close();
+        }
+    }
+
+    /**
+     * Splicing requires exactly two members served by this group's event loop, echo, clustering and traffic shaping
+     * turned off, no framing mode, and no packet tracing or capture on this channel
+     */
+    private boolean canSplice() {
+        if (!Main.getSplice() || eventLoop == null || Main.getEcho() || bridge != null || members.length != 2
+                || TrafficShaper.getActive() != null) {
+            return false;
+        }
+        for (Connection connection : members) {
+            if (!(connection.getChannel() instanceof AbstractEpollStreamChannel) || connection.isFramed()
+                    || !connection.getChannel().isRegistered()
+                    || connection.getChannel().eventLoop() != eventLoop) {
+                return false;
+            }
+            int verboseChannel = Main.getVerboseChannel();
+            if (Main.getVerbosity() >= 3 && (verboseChannel == -1 || verboseChannel == connection.getChannelNumber())) {
+                return false;
+            }
+            if (PacketCapture.isCapturing(connection.getChannelNumber())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hold writes on the other channels in this connection group to relieve the pressure on the provided connection.
+     * Only the pause policy holds writes, the other policies deal with slow members while forwarding. Must be called
+     * from the event loop of the provided connection.
+     *
+     * @param notReady The connection that is no longer writeable
+     */
+    public void channelOverloaded(Connection notReady) {
+        if (notReady.isOverloaded() || getPolicy() != SlowMemberPolicy.PAUSE) {
+            return;
+        }
+        notReady.setOverloaded(true);
+        int previous = overloaded.getAndIncrement();
+        if (previous == 0) {
+            stats.recordPause();
+            if (bridge != null) {
+                bridge.channelOverloadChanged(channelNumber);
+            }
+        }
+        overloadedChanged(previous);
+    }
+
+    /**
+     * Tell this connection group that this connection is now ready to receive data. Must be called from the event
+     * loop of the provided connection.
+     */
+    public void channelReady(Connection ready) {
+        if (!ready.isOverloaded()) {
+            return;
+        }
+        ready.setOverloaded(false);
+        int current = overloaded.decrementAndGet();
+        if (current == 0 && bridge != null) {
+            bridge.channelOverloadChanged(channelNumber);
+        }
+        overloadedChanged(current);
+    }
+
+    /**
+     * Pauses or resumes every member on behalf of another server in the cluster. Each source is counted once, no
+     * matter how often it asks.
+     *
+     * @param source Identifies why the other server asked, so that each reason can be withdrawn separately
+     */
+    public void setPeerPaused(Object source, boolean paused) {
+        boolean changed = paused ? peerPauses.add(source) : peerPauses.remove(source);
+        if (changed) {
+            for (Connection connection : members) {
+                updatePaused(connection);
+            }
+        }
+    }
+
+    /**
+     * A member is paused while any member other than itself is overloaded, so members only change state when the
+     * overloaded count moves between 0, 1 and 2
+     *
+     * @param lower The smaller of the overloaded counts before and after the change
+     */
+    private void overloadedChanged(int lower) {
+        if (lower > 1) {
+            return;
+        }
+        for (Connection connection : members) {
+            updatePaused(connection);
+        }
+    }
+
+    /**
+     * Pauses or resumes reading from the given member on its own event loop, based on the overloaded count at the
+     * time the task runs. Tasks may run out of order, each one simply applies the latest state.
+     */
+    private void updatePaused(Connection member) {
+        EventLoop loop = member.getChannel().eventLoop();
+        if (loop.inEventLoop()) {
+            int others = overloaded.get() - (member.isOverloaded() ? 1 : 0);
+            member.setPaused(Connection.PAUSED_BY_GROUP, others > 0 || !peerPauses.isEmpty());
+        } else {
+            loop.execute(() -> updatePaused(member));
+        }
+    }
+}
@@ -1,18 +1,18 @@
 package ml.dent.connect;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
 import ml.dent.app.Logger;
 import ml.dent.app.Main;
+import ml.dent.capture.PacketCapture;
 
 import java.net.SocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
 
 import static ml.dent.connect.Connection.State;
 
@@ -21,34 +21,100 @@ public class ConnectionManager {
     public static int MAX_PAIRS       = 65535;
     public static int MAX_CONNECTIONS = 2;
 
+    /**
+     * One more than the highest connection id, which is also the most connections that can be open at once
+     */
+    private static final int MAX_IDS = 1 << 24;
+
     private static Logger logger = Logger.getInstance();
 
+    /*
+     * Only used for admin queries. The data path reaches connections through the channel attribute
+     * Connection.CONNECTION instead.
+     */
     private ConcurrentHashMap<SocketAddress, Connection> channels;
-    private ConcurrentSkipListMap<Integer, Connection>   ids;
+    private ConcurrentIntTable<Connection>               ids;
+
+    private IdAllocator idAllocator;
+
+    private ConcurrentIntTable<ConnectionGroup> groups;
 
-    private ConnectionGroup[] pairs;
+    /**
+     * Counters of groups that have been retired, so the server-wide totals do not drop when a channel empties
+     */
+    private TrafficStats retiredStats = new TrafficStats();
+
+    private EventLoopBalancer loopBalancer;
+
+    private OutboundBudget outboundBudget;
+
+    private GroupBridge bridge;
+
+    /**
+     * Null unless channels are split between several independent servers
+     */
+    private volatile ChannelRing ring;
+
+    /**
+     * Slow member policies set for single channels, kept while their channel has no group
+     */
+    private Map<Integer, SlowMemberPolicy> channelPolicies = new ConcurrentHashMap<>();
+
+    private LongAdder handshakesStarted    = new LongAdder();
+    private LongAdder handshakesCompleted  = new LongAdder();
+    private LongAdder handshakesFailed     = new LongAdder();
+    private LongAdder handshakesRedirected = new LongAdder();
 
     public ConnectionManager() {
         channels = new ConcurrentHashMap<>();
-        ids = new ConcurrentSkipListMap<>(Collections.reverseOrder());
-        pairs = new ConnectionGroup[MAX_PAIRS];
+        ids = new ConcurrentIntTable<>(MAX_IDS);
+        idAllocator = new IdAllocator(MAX_IDS);
+        groups = new ConcurrentIntTable<>(MAX_PAIRS);
     }
 
+    /**
+     * Enables group affinity: every member of a connection group is moved onto one event loop of the given group,
+     * chosen when the connection group is created. Must be called before any connection joins a channel.
+     */
+    public void setGroupAffinity(EventLoopGroup workerGroup) {
+        loopBalancer = new EventLoopBalancer(workerGroup);
+    }
+
+    /**
+     * Limits the total number of bytes queued for sending across all connections. The budget is enforced from a
+     * periodic task on a thread of its own.
+     */
+    public void setOutboundBudget(long budget) {
+        outboundBudget = new OutboundBudget(this, budget);
+        outboundBudget.start();
+    }
+
+    /**
+     * Links the groups of this server to the same channels on other servers. Must be called before any connection
+     * joins a channel.
+     */
+    public void setBridge(GroupBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * @return The outbound budget, or null if no budget is set
+     */
+    public OutboundBudget getOutboundBudget() {
+        return outboundBudget;
+    }
+
+    /**
+     * Assigns the connection an id, unless it already has one, and makes it reachable by id and address. The id
+     * stays with the connection until it is removed.
+     */
     public Connection register(SocketAddress address, Connection connection) {
-        int curId;
-        synchronized (this) {
-            if (connection.getId() == -1) {
-                if (ids.isEmpty()) {
-                    curId = 0;
-                } else {
-                    curId = ids.firstKey() + 1;
-                }
-            } else {
-                curId = connection.getId();
-            }
-            ids.put(curId, connection);
+        if (connection.getId() == -1) {
+            int id = idAllocator.allocate();
+            ids.compareAndSet(id, null, connection);
+            connection.setId(id);
         }
-        connection.setId(curId);
+        handshakesStarted.increment();
         return channels.put(address, connection);
     }
 
@@ -56,16 +122,43 @@ public class ConnectionManager {
         return register(connection.remoteAddress(), connection);
     }
 
+    /**
+     * Takes the ids of the connections handed over by the previous server process out of the pool. Must be called
+     * once, before any connection is registered.
+     */
+    public void reserveIds(int[] reserved) {
+        int[] sorted = reserved.clone();
+        Arrays.sort(sorted);
+        for (int id : sorted) {
+            idAllocator.reserve(id);
+        }
+    }
+
+    /**
+     * Registers a connection handed over by the previous server process under the id it had there, which must have
+     * been reserved with {@link #reserveIds(int[])}. It does not count as a new handshake.
+     */
+    public void restore(Connection connection) {
+        ids.compareAndSet(connection.getId(), null, connection);
+        channels.put(connection.remoteAddress(), connection);
+    }
+
     public Connection get(SocketAddress address) {
         return channels.get(address);
     }
 
     public Connection remove(SocketAddress address) {
-        ids.remove(channels.get(address).getId());
-        return channels.remove(address);
+        Connection connection = channels.remove(address);
+        if (connection != null && ids.compareAndSet(connection.getId(), connection, null)) {
+            idAllocator.release(connection.getId());
+        }
+        return connection;
     }
 
     public Connection remove(Connection connection) {
+        if (connection.getGroup() == null && connection.getState() != State.REDIRECTED) {
+            handshakesFailed.increment();
+        }
         return remove(connection.remoteAddress());
     }
 
@@ -73,248 +166,369 @@ public class ConnectionManager {
         return Collections.unmodifiableCollection(channels.values());
     }
 
-    private HashMap<Connection, Integer> authIndex = new HashMap<>();
-
-    public void handleConnectionRead(SocketAddress address, Object msg) {
-        Connection connection = channels.get(address);
-        switch (connection.getState()) {
-            case CONNECTED:
-                handleConnected(connection, msg);
-                break;
-            case AUTHENTICATED:
-                handleAuthenticated(connection, msg);
-                break;
-            case READY:
-                handleReady(connection, msg);
-                break;
-        }
-    }
-
-    private void handleConnected(Connection connection, Object msg) {
-        if (connection.getState() != State.CONNECTED) {
+    /**
+     * Forwards data received from a connection that has completed the handshake to the rest of its group
+     */
+    public void handleConnectionRead(Connection connection, Object msg) {
+        ConnectionGroup group = connection.getGroup();
+        if (group == null) {
+            ReferenceCountUtil.release(msg);
             return;
         }
-        try {
-            ByteBuf buf = (ByteBuf) msg;
-            byte[] bytes = new byte[buf.readableBytes()];
-            buf.readBytes(bytes);
-            String authString = Main.getAuthString();
-
-            int i = 0;
-            int j = authIndex.getOrDefault(connection, 0);
-            while (i < bytes.length && j < authString.length()) {
-                if ((char) bytes[i] == authString.charAt(j)) {
-                    i++;
-                    j++;
-                } else {
-                    break;
-                }
+        if (msg instanceof ByteBuf) {
+            int size = ((ByteBuf) msg).readableBytes();
+            connection.addReceived(size);
+            PacketCapture capture = PacketCapture.getActive();
+            if (capture != null) {
+                capture.record(connection.getId(), connection.getChannelNumber(), PacketCapture.DIRECTION_IN, (ByteBuf) msg);
             }
-            if (i == bytes.length && j == authString.length()) {
-                // end of packet, end of auth string
-                connection.setState(State.AUTHENTICATED);
-            } else if (i != bytes.length && j == authString.length()) { // tested & correct
-                // end of auth string, but still more to packet
-                connection.setState(State.AUTHENTICATED);
-                ByteBuf nextBuf = Unpooled.buffer(bytes.length - i);
-                nextBuf.writeBytes(bytes, i, bytes.length - i);
-
-                authIndex.remove(connection);
-                handleConnectionRead(connection.remoteAddress(), nextBuf);
-            } else if (i == bytes.length) {
-                // end of packet, more to auth string
-                authIndex.put(connection, j);
-            } else {
-                // more to packet, more to auth string
-                connection.write("Authentication failure");
-                connection.close("Authentication failure");
+            TrafficShaper shaper = TrafficShaper.getActive();
+            if (shaper != null) {
+                shaper.charge(connection, group, size, Main.getEcho());
             }
-        } finally {
-            ReferenceCountUtil.release(msg);
         }
+        // Reads already in flight when the group is paused arrive in the WAITING state and must still be forwarded
+        group.write(connection, msg);
     }
 
-    private void handleAuthenticated(Connection connection, Object msg) {
-        if (connection.getState() != State.AUTHENTICATED) {
-            return;
+    /**
+     * Adds the given connection to the connection group for the negotiated channel number and tells the client
+     * it is ready. If the channel cannot be joined, the connection is closed. If another server of the channel ring
+     * owns the channel, the client is told to connect there instead and the connection is closed. With group
+     * affinity, the connection first moves to the event loop of its group and only joins once it is registered
+     * there, so no other member ever writes to it through the event loop it is leaving.
+     *
+     * @param joined Run on the event loop of the connection once it has joined the channel, before anything else is
+     *               read from it
+     * @return false if the connection was closed instead of joining the channel
+     */
+    public boolean joinChannel(Connection connection, int channelNum, Runnable joined) {
+        if (channelNum < 0 || channelNum >= MAX_PAIRS) {
+            connection.write("Failed to negotiate channel number");
+            connection.close("Failed to negotiate channel number");
+            return false;
         }
-        try {
-            StringBuilder channel = new StringBuilder();
-            ByteBuf buf = (ByteBuf) msg;
-            byte[] bytes = new byte[buf.readableBytes()];
-            buf.readBytes(bytes);
+        ChannelRing currentRing = ring;
+        String owner = currentRing == null ? null : currentRing.redirectFor(channelNum);
+        if (owner != null) {
+            connection.setState(State.REDIRECTED);
+            connection.write("REDIRECT " + owner);
+            connection.close("Redirected to " + owner);
+            handshakesRedirected.increment();
+            return false;
+        }
+        join(connection, channelNum, () -> {
+            connection.write("READY");
+            handshakesCompleted.increment();
+            joined.run();
+        });
+        return true;
+    }
 
-            int maxHexLen = Integer.toHexString(MAX_PAIRS).length();
+    /**
+     * Adds a connection handed over by the previous server process back to the channel it had joined there, without
+     * telling the client. Must be called from the event loop of the connection.
+     *
+     * @param joined Run on the event loop of the connection once it has joined the channel, before anything else is
+     *               read from it
+     * @return false if the connection was closed instead of joining the channel
+     */
+    public boolean rejoinChannel(Connection connection, int channelNum, Runnable joined) {
+        if (channelNum < 0 || channelNum >= MAX_PAIRS) {
+            connection.close("Channel number out of range after handoff");
+            return false;
+        }
+        join(connection, channelNum, joined);
+        return true;
+    }
 
-            int i = 0;
-            while (i < maxHexLen && i < bytes.length && Character.toString((char) bytes[i]).matches("[0-9A-Fa-f]")) {
-                channel.append((char) bytes[i]);
-                i++;
-            }
-            int channelNum = Integer.parseInt(channel.toString(), 16);
-            if (channelNum < MAX_PAIRS) {
-                connection.setChannelNumber(channelNum);
-                if (pairs[channelNum] == null) {
-                    pairs[channelNum] = new ConnectionGroup(MAX_CONNECTIONS);
-                }
-                try {
-                    pairs[channelNum].addConnection(connection);
-                } catch (IllegalArgumentException e) {
-                    connection.write(e.getMessage());
-                    connection.close(e.getMessage());
+    /**
+     * Adds the connection to the group for the given channel number, moving it onto the event loop of that group
+     * first if group affinity is enabled. If the group is full, the connection is closed instead.
+     *
+     * @param joined Run on the event loop of the connection once it is a member of the group
+     */
+    private void join(Connection connection, int channelNum, Runnable joined) {
+        connection.setChannelNumber(channelNum);
+        ConnectionGroup group;
+        try {
+            do {
+                group = groupFor(channelNum);
+                if (loopBalancer != null && connection.getChannel().eventLoop() != group.getEventLoop()) {
+                    // The group may be replaced by one on another event loop during the move, so it is looked up again
+                    loopBalancer.moveTo(connection, group.getEventLoop(), () -> join(connection, channelNum, joined));
+                    ConnectionGroup target = group;
+                    connection.closeFuture().addListener(future -> target.retireIfEmpty());
                     return;
                 }
-                connection.setState(State.READY);
-                connection.write("READY");
-                if (i != bytes.length) {
-                    ByteBuf nextBuf = Unpooled.buffer(bytes.length - i);
-                    nextBuf.writeBytes(bytes, i, bytes.length - i);
-                    handleConnectionRead(connection.remoteAddress(), nextBuf);
+                // Fails only if the last member left the group after it was looked up, in which case it is replaced
+            } while (!group.addConnection(connection));
+        } catch (IllegalArgumentException e) {
+            connection.write(e.getMessage());
+            connection.close(e.getMessage());
+            return;
+        }
+        connection.setState(State.READY);
+        joined.run();
+        if (loopBalancer != null) {
+            group.trySplice();
+        }
+    }
+
+    /**
+     * @return The live group for the given channel number, creating it if there is none
+     */
+    private ConnectionGroup groupFor(int channelNum) {
+        while (true) {
+            ConnectionGroup current = groups.get(channelNum);
+            if (current != null && !current.isRetired()) {
+                return current;
+            }
+            ConnectionGroup created = new ConnectionGroup(channelNum, MAX_CONNECTIONS,
+                    loopBalancer == null ? null : loopBalancer.reserve(), this::retire);
+            created.setBridge(bridge);
+            created.setPolicy(channelPolicies.get(channelNum));
+            if (groups.compareAndSet(channelNum, current, created)) {
+                if (bridge != null) {
+                    bridge.channelChanged(channelNum);
                 }
-            } else {
-                connection.write("Failed to negotiate channel number");
-                connection.close("Failed to negotiate channel number");
+                return created;
+            }
+            if (loopBalancer != null) {
+                loopBalancer.release(created.getEventLoop());
             }
-        } finally {
-            ReferenceCountUtil.release(msg);
         }
     }
 
-    private void handleReady(Connection connection, Object msg) {
-        if (connection.getState() != State.READY) {
-            return;
+    /**
+     * Sets the slow member policy of one channel, which applies to its current group and every group created for the
+     * channel later
+     *
+     * @param policy The policy for the channel, or null to follow the default policy again
+     */
+    public void setChannelPolicy(int channelNum, SlowMemberPolicy policy) {
+        if (policy == null) {
+            channelPolicies.remove(channelNum);
+        } else {
+            channelPolicies.put(channelNum, policy);
+        }
+        ConnectionGroup group = groups.get(channelNum);
+        if (group != null) {
+            group.setPolicy(policy);
         }
-        pairs[connection.getChannelNumber()].write(connection, msg);
     }
 
-    public boolean kill(int id) {
-        Connection connection = ids.get(id);
-        if (connection != null) {
-            connection.close("Disconnected by server");
-            return true;
+    /**
+     * Applies a change of the default slow member policy to the groups that follow it
+     */
+    public void defaultPolicyChanged() {
+        groups.forEach(ConnectionGroup::policyChanged);
+    }
+
+    /**
+     * @return The channels whose slow member policy differs from the default, sorted by channel number
+     */
+    public Map<Integer, SlowMemberPolicy> getChannelPolicies() {
+        return new TreeMap<>(channelPolicies);
+    }
+
+    /**
+     * Removes a group whose last member has left from the channel table, unless a newer group has already taken its
+     * place, and keeps its counters in the retired totals.
+     */
+    private void retire(ConnectionGroup group) {
+        groups.compareAndSet(group.getChannelNumber(), group, null);
+        group.getStats().addTo(retiredStats);
+        if (loopBalancer != null) {
+            loopBalancer.release(group.getEventLoop());
+        }
+        if (bridge != null) {
+            bridge.channelChanged(group.getChannelNumber());
         }
-        return false;
     }
 
-    public void setOverloaded(SocketAddress addr) {
-        Connection connection = get(addr);
-        pairs[connection.getChannelNumber()].channelOverloaded(connection);
+    /**
+     * Replaces the ring deciding which channels this server accepts. Members of channels that move to another server
+     * stay connected, only new handshakes are redirected.
+     *
+     * @param ring The new ring, or null to accept every channel
+     */
+    public void setRing(ChannelRing ring) {
+        this.ring = ring;
     }
 
-    public void setReady(SocketAddress addr) {
-        Connection connection = get(addr);
-        pairs[connection.getChannelNumber()].channelReady(connection);
+    public ChannelRing getRing() {
+        return ring;
     }
 
     /**
-     * This method will only take effect if called before the instantiation of a ConnectionManager instance
+     * @return The numbers of the channels that have members on this server but are owned by another server of the
+     * channel ring
      */
-    public static void setMaxPairs(int n) {
-        MAX_PAIRS = n;
+    public List<Integer> getMovedChannels() {
+        List<Integer> moved = new ArrayList<>();
+        ChannelRing currentRing = ring;
+        if (currentRing != null) {
+            groups.forEach(group -> {
+                if (!group.isRetired() && currentRing.redirectFor(group.getChannelNumber()) != null) {
+                    moved.add(group.getChannelNumber());
+                }
+            });
+        }
+        return moved;
     }
 
     /**
-     * This method will only take effect if called before the instantiation of a ConnectionManager instance
+     * @return true if the given channel currently has a group on this server
      */
-    public static void setMaxConnections(int n) {
-        MAX_CONNECTIONS = n;
+    public boolean isChannelActive(int channelNum) {
+        ConnectionGroup group = groups.get(channelNum);
+        return group != null && !group.isRetired();
     }
 
     /**
-     * A class that links two connections in software
+     * @return true if a member of the given channel on this server is currently not writable
      */
-    private static class ConnectionGroup {
-        private Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<>());
-        private Set<Connection> overloaded  = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    public boolean isChannelOverloaded(int channelNum) {
+        ConnectionGroup group = groups.get(channelNum);
+        return group != null && !group.isRetired() && group.getOverloadedCount() > 0;
+    }
 
-        private ReentrantLock lock          = new ReentrantLock();
-        private AtomicBoolean changingState = new AtomicBoolean(false);
+    /**
+     * Writes data received from another server to the members of the given channel on this server. Takes ownership
+     * of the message.
+     */
+    public void deliverFromPeer(int channelNum, ByteBuf msg) {
+        ConnectionGroup group = groups.get(channelNum);
+        if (group == null) {
+            msg.release();
+            return;
+        }
+        group.writeFromPeer(msg);
+    }
+
+    /**
+     * Pauses or resumes reading on the given channel on behalf of another server
+     *
+     * @see ConnectionGroup#setPeerPaused(Object, boolean)
+     */
+    public void setPeerPaused(Object source, int channelNum, boolean paused) {
+        ConnectionGroup group = groups.get(channelNum);
+        if (group != null) {
+            group.setPeerPaused(source, paused);
+        }
+    }
 
-        private int maxConnections;
+    /**
+     * @return The server-wide counters, summed over all connection groups
+     */
+    public ServerStats getStats() {
+        TrafficStats total = new TrafficStats();
+        retiredStats.addTo(total);
+        int[] activeGroups = new int[1];
+        groups.forEach(group -> {
+            if (!group.isRetired()) {
+                group.getStats().addTo(total);
+            }
+            if (group.size() > 0) {
+                activeGroups[0]++;
+            }
+        });
+        return new ServerStats(total, handshakesStarted.sum(), handshakesCompleted.sum(), handshakesFailed.sum(),
+                handshakesRedirected.sum(), activeGroups[0], channels.size());
+    }
 
-        public ConnectionGroup() {
-            this(2);
+    /**
+     * @return The state of every connection group that currently has members, ordered by channel number
+     */
+    public List<ChannelStats> getChannelStats() {
+        List<ChannelStats> stats = new ArrayList<>();
+        groups.forEach(group -> {
+            if (group.size() > 0) {
+                stats.add(new ChannelStats(group.getChannelNumber(), group.size(), group.getOverloadedCount(),
+                        group.getQueuedBytes(), group.getStats()));
+            }
+        });
+        return stats;
+    }
+
+    /**
+     * Stops or resumes reading from every connection, independent of any other reason a connection is paused. Blocks
+     * until no event loop reads from a paused connection anymore, and until everything forwarded before the pause
+     * was handed to the connection it was written to.
+     */
+    public void setHandoffPaused(boolean paused) throws InterruptedException {
+        List<Future<?>> pending = new ArrayList<>();
+        for (Connection connection : channels.values()) {
+            pending.add(connection.getChannel().eventLoop().submit(() -> connection.setPaused(Connection.PAUSED_BY_HANDOFF, paused)));
+        }
+        awaitAll(pending);
+        if (!paused) {
+            return;
+        }
+        // Writes from a paused connection to a peer on another event loop may still be queued on that loop. They
+        // run before a task submitted after the pause completed.
+        Set<EventExecutor> loops = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Connection connection : channels.values()) {
+            loops.add(connection.getChannel().eventLoop());
         }
+        pending.clear();
+        for (EventExecutor loop : loops) {
+            pending.add(loop.submit(() -> { }));
+        }
+        awaitAll(pending);
+    }
 
-        public ConnectionGroup(int maxConnections) {
-            this.maxConnections = maxConnections;
+    private static void awaitAll(List<Future<?>> futures) throws InterruptedException {
+        for (Future<?> future : futures) {
+            future.await();
         }
+    }
 
-        public void addConnection(Connection n) throws IllegalArgumentException {
-            synchronized (this) {
-                if (connections.size() >= maxConnections) {
-                    throw new IllegalArgumentException("Connection Group Full");
-                }
-                n.closeFuture().addListener(future -> {
-                    connections.remove(n);
-                    channelReady(n);
-                });
-                connections.add(n);
-            }
+    public boolean kill(int id) {
+        Connection connection = ids.get(id);
+        if (connection != null) {
+            connection.close("Disconnected by server");
+            return true;
         }
+        return false;
+    }
 
-        /**
-         * Writes the given message to the other connections
-         */
-        public void write(Connection incoming, Object msg) {
-            if (changingState.get()) {
-                lock.lock();
-                lock.unlock();
-            }
-            try {
-                if (Main.getVerboseChannel() == incoming.getChannelNumber() && Main.getVerbosity() >= 3) {
-                    logger.logln(incoming + ": " + msg);
-                    if (Main.getVerbosity() >= 4) {
-                        ByteBuf buf = (ByteBuf) msg;
-                        byte[] bytes = new byte[buf.readableBytes()];
-                        buf.getBytes(buf.readerIndex(), bytes);
-                        logger.logln(Arrays.toString(bytes));
-                    }
-                }
-                for (Connection connection : connections) {
-                    if (connection != incoming || Main.getEcho()) {
-                        connection.write(ReferenceCountUtil.retain(msg));
-                    }
-                }
-            } finally {
-                ReferenceCountUtil.release(msg);
-            }
+    public void setOverloaded(Connection connection) {
+        ConnectionGroup group = connection.getGroup();
+        if (group != null) {
+            group.channelOverloaded(connection);
         }
+    }
 
-        /**
-         * Hold writes on the other channels in this connection group to relieve the pressure on the provided connection
-         *
-         * @param notReady The connection that is no longer writeable
-         */
-        public void channelOverloaded(Connection notReady) {
-            changingState.set(true);
-            lock.lock();
-            overloaded.add(notReady);
-            for (Connection connection : connections) {
-                if (connection != notReady) {
-                    connection.getChannel().config().setOption(ChannelOption.AUTO_READ, false);
-                    connection.setState(State.WAITING);
-                }
-            }
-            lock.unlock();
-            changingState.set(false);
+    public void setReady(Connection connection) {
+        ConnectionGroup group = connection.getGroup();
+        if (group != null) {
+            group.channelReady(connection);
         }
+    }
 
-        /**
-         * Tell this connection group that this connection is now ready to receive data
-         */
-        public void channelReady(Connection ready) {
-            changingState.set(true);
-            lock.lock();
-            overloaded.remove(ready);
-            if (overloaded.size() == 0) {
-                for (Connection connection : connections) {
-                    connection.getChannel().config().setOption(ChannelOption.AUTO_READ, true);
-                    connection.setState(State.READY);
-                }
-            }
-            lock.unlock();
-            changingState.set(false);
+    /**
+     * Tells the group of the given connection that a read from it has completed
+     */
+    public void readComplete(Connection connection) {
+        ConnectionGroup group = connection.getGroup();
+        if (group != null) {
+            group.readComplete(connection);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * This method will only take effect if called before the instantiation of a ConnectionManager instance
+     */
+    public static void setMaxPairs(int n) {
+        MAX_PAIRS = n;
+    }
+
+    /**
+     * This method will only take effect if called before the instantiation of a ConnectionManager instance
+     */
+    public static void setMaxConnections(int n) {
+        MAX_CONNECTIONS = n;
+    }
+}
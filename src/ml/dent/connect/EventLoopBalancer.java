@@ -0,0 +1,85 @@
+package ml.dent.connect;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayList;
+
+/**
+ * Places connection groups on the event loops of a worker group, and moves every member of a group onto the event
+ * loop that owns it. Forwarding inside a group then never has to hand a buffer to another thread. New groups are
+ * placed on the event loop that currently owns the fewest groups.
+ */
+class EventLoopBalancer {
+
+    private EventLoop[] loops;
+
+    /**
+     * The number of live groups owned by each event loop. Guarded by this balancer's monitor.
+     */
+    private int[] load;
+
+    EventLoopBalancer(EventLoopGroup group) {
+        ArrayList<EventLoop> loopList = new ArrayList<>();
+        for (EventExecutor executor : group) {
+            loopList.add((EventLoop) executor);
+        }
+        loops = loopList.toArray(new EventLoop[0]);
+        load = new int[loops.length];
+    }
+
+    /**
+     * Picks the event loop for a new group and counts the group against it right away, so groups created at the same
+     * time are spread over the loops before any of their members has moved
+     *
+     * @return The event loop that owned the fewest groups
+     */
+    synchronized EventLoop reserve() {
+        int min = 0;
+        for (int i = 1; i < loops.length; i++) {
+            if (load[i] < load[min]) {
+                min = i;
+            }
+        }
+        load[min]++;
+        return loops[min];
+    }
+
+    /**
+     * Stops counting a group that was retired, or that was never published, against its event loop
+     */
+    synchronized void release(EventLoop loop) {
+        load[indexOf(loop)]--;
+    }
+
+    /**
+     * Moves the given connection onto the given event loop. The move happens after the current read completes, and
+     * nothing is read from the connection between leaving its event loop and the call to moved.
+     *
+     * @param moved Run on the target event loop once the connection is registered there, unless it was closed first
+     */
+    void moveTo(Connection connection, EventLoop target, Runnable moved) {
+        Channel channel = connection.getChannel();
+        channel.deregister().addListener(future -> {
+            if (future.isSuccess() && channel.isOpen()) {
+                // Listeners of the registration run before the channel starts reading on the target loop
+                target.register(channel).addListener(registered -> {
+                    if (registered.isSuccess()) {
+                        moved.run();
+                    }
+                });
+            }
+        });
+    }
+
+    private int indexOf(EventLoop loop) {
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] == loop) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Event loop does not belong to this balancer");
+    }
+}
@@ -0,0 +1,30 @@
+package ml.dent.connect;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Links the connection groups of this server to the groups of the same channels on other servers. Connection groups
+ * call into the bridge, the bridge calls back into the {@link ConnectionManager}.
+ */
+public interface GroupBridge {
+
+    /**
+     * Called after a channel gained its group or lost it. The bridge reads the current state back from the
+     * connection manager, so calls may arrive in any order.
+     */
+    void channelChanged(int channelNumber);
+
+    /**
+     * Called after the local members of a channel became overloaded or writable again. The bridge reads the current
+     * state back from the connection manager, so calls may arrive in any order.
+     */
+    void channelOverloadChanged(int channelNumber);
+
+    /**
+     * Sends data received from a local member to every other server with members on the channel. The message is
+     * not released.
+     *
+     * @return The number of servers the data was sent to
+     */
+    int forward(int channelNumber, ByteBuf msg);
+}
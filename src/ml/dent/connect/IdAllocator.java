@@ -0,0 +1,60 @@
+package ml.dent.connect;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out small connection ids without locking. Ids start at 0 and released ids are reused in the order they
+ * were released, so the id of a connection that just closed is the last to be handed out again and an admin acting
+ * on a stale id is unlikely to hit a new connection. Ids never exceed the number of connections open at once.
+ */
+class IdAllocator {
+
+    private final int limit;
+
+    private final AtomicInteger                  next     = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Integer> released = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param limit one more than the highest id that may be handed out
+     */
+    IdAllocator(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @throws IllegalStateException if every id below the limit is in use
+     */
+    int allocate() {
+        Integer reused = released.poll();
+        if (reused != null) {
+            return reused;
+        }
+        int id;
+        do {
+            id = next.get();
+            if (id >= limit) {
+                throw new IllegalStateException("No connection ids left");
+            }
+        } while (!next.compareAndSet(id, id + 1));
+        return id;
+    }
+
+    /**
+     * Takes the given id out of the pool, making every lower id that was never handed out available. Only used while
+     * nothing else allocates ids, with ids in increasing order.
+     */
+    void reserve(int id) {
+        for (int skipped = next.get(); skipped < id; skipped++) {
+            released.offer(skipped);
+        }
+        next.set(Math.max(next.get(), id + 1));
+    }
+
+    /**
+     * Makes an id available again. Must be called at most once for every allocated id.
+     */
+    void release(int id) {
+        released.offer(id);
+    }
+}
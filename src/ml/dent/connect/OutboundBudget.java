@@ -0,0 +1,124 @@
+package ml.dent.connect;
+
+import io.netty.channel.ChannelOutboundBuffer;
+import ml.dent.app.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the total number of bytes queued in the outbound buffers of all connections. The queued bytes are sampled
+ * periodically. While the total is above the budget, reading is paused on the connections that received the most
+ * data since the previous sample, until their share covers the excess. Paused connections resume once the total
+ * falls below three quarters of the budget. Sampling runs on its own thread, so it never delays forwarding on an
+ * event loop.
+ */
+public class OutboundBudget {
+    private static Logger logger = Logger.getInstance();
+
+    private static final long SAMPLE_INTERVAL_MS = 100;
+
+    private ConnectionManager connectionManager;
+    private long              budget;
+
+    /*
+     * Written only by the sampling task, read by the print command
+     */
+    private volatile long queued;
+    private volatile int  pausedCount;
+
+    private Set<Connection> paused = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private ScheduledExecutorService sampler;
+
+    OutboundBudget(ConnectionManager connectionManager, long budget) {
+        this.connectionManager = connectionManager;
+        this.budget = budget;
+    }
+
+    void start() {
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "outbound-budget");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleWithFixedDelay(this::sample, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling. Connections that are paused stay paused.
+     */
+    public void stop() {
+        sampler.shutdown();
+    }
+
+    private void sample() {
+        Collection<Connection> connections = connectionManager.getAllConnections();
+        ArrayList<Connection> senders = new ArrayList<>();
+        long total = 0;
+        for (Connection connection : connections) {
+            ChannelOutboundBuffer buffer = connection.getChannel().unsafe().outboundBuffer();
+            if (buffer != null) {
+                total += buffer.totalPendingWriteBytes();
+            }
+            connection.sampleReceived();
+            if (connection.getReceivedSinceSample() > 0 && !paused.contains(connection)) {
+                senders.add(connection);
+            }
+        }
+        queued = total;
+
+        if (total > budget) {
+            senders.sort((a, b) -> Long.compare(b.getReceivedSinceSample(), a.getReceivedSinceSample()));
+            long excess = total - budget;
+            for (Connection sender : senders) {
+                if (excess <= 0) {
+                    break;
+                }
+                excess -= sender.getReceivedSinceSample();
+                paused.add(sender);
+                setPaused(sender, true);
+                long queuedAtPause = total;
+                logger.logln(2, () -> sender + " paused, outbound budget exceeded (" + queuedAtPause + " bytes queued)");
+            }
+        } else if (total < budget / 4 * 3 && !paused.isEmpty()) {
+            for (Connection sender : paused) {
+                setPaused(sender, false);
+            }
+            paused.clear();
+        }
+        paused.removeIf(connection -> !connection.getChannel().isOpen());
+        pausedCount = paused.size();
+    }
+
+    private void setPaused(Connection connection, boolean isPaused) {
+        connection.getChannel().eventLoop().execute(() -> connection.setPaused(Connection.PAUSED_BY_BUDGET, isPaused));
+    }
+
+    /**
+     * @return The maximum number of bytes that may be queued across all outbound buffers
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return The number of bytes queued across all outbound buffers at the last sample
+     */
+    public long getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return The number of connections currently paused because the budget was exceeded
+     */
+    public int getPausedCount() {
+        return pausedCount;
+    }
+}
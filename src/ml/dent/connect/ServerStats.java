@@ -0,0 +1,66 @@
+package ml.dent.connect;
+
+/**
+ * A snapshot of the server-wide counters
+ */
+public class ServerStats {
+    private TrafficStats traffic;
+
+    private long handshakesStarted;
+    private long handshakesCompleted;
+    private long handshakesFailed;
+    private long handshakesRedirected;
+    private int  activeGroups;
+    private int  connections;
+
+    ServerStats(TrafficStats traffic, long handshakesStarted, long handshakesCompleted, long handshakesFailed,
+                long handshakesRedirected, int activeGroups, int connections) {
+        this.traffic = traffic;
+        this.handshakesStarted = handshakesStarted;
+        this.handshakesCompleted = handshakesCompleted;
+        this.handshakesFailed = handshakesFailed;
+        this.handshakesRedirected = handshakesRedirected;
+        this.activeGroups = activeGroups;
+        this.connections = connections;
+    }
+
+    /**
+     * @return The traffic of all connection groups since the server started
+     */
+    public TrafficStats getTraffic() {
+        return traffic;
+    }
+
+    public long getHandshakesStarted() {
+        return handshakesStarted;
+    }
+
+    public long getHandshakesCompleted() {
+        return handshakesCompleted;
+    }
+
+    /**
+     * @return The number of connections closed before they joined a channel
+     */
+    public long getHandshakesFailed() {
+        return handshakesFailed;
+    }
+
+    /**
+     * @return The number of connections sent to the server of the channel ring that owns their channel
+     */
+    public long getHandshakesRedirected() {
+        return handshakesRedirected;
+    }
+
+    /**
+     * @return The number of connection groups with at least one member
+     */
+    public int getActiveGroups() {
+        return activeGroups;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+}
@@ -0,0 +1,34 @@
+package ml.dent.connect;
+
+/**
+ * What a connection group does about a member that receives data slower than the other members send it
+ */
+public enum SlowMemberPolicy {
+    /**
+     * Stop reading from the other members until the slow member has caught up, so every member runs at the speed of
+     * the slowest one
+     */
+    PAUSE,
+    /**
+     * Keep forwarding to the other members, and drop whole messages for the slow member while more than the slow
+     * queue limit is waiting to be sent to it
+     */
+    DROP,
+    /**
+     * Keep forwarding to the other members, and disconnect the slow member once more than the slow queue limit is
+     * waiting to be sent to it
+     */
+    DISCONNECT;
+
+    /**
+     * @return The policy with the given name in any case, or null if there is none
+     */
+    public static SlowMemberPolicy fromName(String name) {
+        for (SlowMemberPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,52 @@
+package ml.dent.connect;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket holding up to a burst of bytes, refilled at a fixed rate. Instead of a token count, the bucket keeps
+ * the time at which it was last empty, so taking tokens is a single compare-and-set and the bucket can be shared by
+ * connections on different event loops. Taking more than the bucket holds puts it into debt, because the bytes have
+ * already been read by then.
+ */
+class TokenBucket {
+
+    private final TrafficShaper owner;
+
+    private final double nanosPerByte;
+    private final long   burstNanos;
+
+    /**
+     * The bucket holds (now - emptyAt) / nanosPerByte tokens, at most the burst. A time after now means debt.
+     */
+    private final AtomicLong emptyAt;
+
+    /**
+     * @param owner The shaper whose limits this bucket enforces
+     */
+    TokenBucket(TrafficShaper owner, long bytesPerSecond, long burst) {
+        this.owner = owner;
+        this.nanosPerByte = 1e9 / bytesPerSecond;
+        this.burstNanos = (long) (burst * nanosPerByte);
+        this.emptyAt = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    TrafficShaper getOwner() {
+        return owner;
+    }
+
+    /**
+     * Takes the given number of bytes out of the bucket
+     *
+     * @return The number of nanoseconds until the bucket is out of debt again, 0 if it is not in debt
+     */
+    long take(long bytes, long now) {
+        long cost = (long) (bytes * nanosPerByte);
+        while (true) {
+            long current = emptyAt.get();
+            long next = Math.max(current, now - burstNanos) + cost;
+            if (emptyAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now);
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ml.dent.connect;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how fast data is forwarded with token buckets per sending connection, per receiving connection, per channel
+ * and for the whole server. Every read is taken out of each bucket it passes through, and once one of them is in
+ * debt, reading from the sender is paused until that bucket is out of debt again. Nothing is buffered: the bytes wait
+ * in the socket of the sender, which slows it down through TCP flow control.
+ * <p>
+ * A shaper is immutable. Changing a limit activates a new shaper, and buckets created for the previous one are
+ * replaced the next time they are used. While no shaper is active, forwarding only pays for one volatile read.
+ */
+public class TrafficShaper {
+
+    /**
+     * What a limit applies to
+     */
+    public enum Scope {
+        /**
+         * Bytes received from each connection
+         */
+        READ,
+        /**
+         * Bytes forwarded to each connection
+         */
+        WRITE,
+        /**
+         * Bytes received from all members of each channel
+         */
+        CHANNEL,
+        /**
+         * Bytes received from all connections of the server
+         */
+        GLOBAL
+    }
+
+    private static volatile TrafficShaper active;
+
+    /**
+     * Bytes per second and burst of every scope with a limit
+     */
+    private final Map<Scope, long[]> limits;
+
+    private final TokenBucket global;
+
+    private final LongAdder pauses;
+
+    private TrafficShaper(Map<Scope, long[]> limits, LongAdder pauses) {
+        this.limits = limits;
+        this.pauses = pauses;
+        long[] globalLimit = limits.get(Scope.GLOBAL);
+        this.global = globalLimit == null ? null : new TokenBucket(this, globalLimit[0], globalLimit[1]);
+    }
+
+    /**
+     * @return The shaper enforcing the current limits, or null if nothing is limited
+     */
+    public static TrafficShaper getActive() {
+        return active;
+    }
+
+    /**
+     * @param shaper The shaper to enforce from now on, or null to stop limiting
+     */
+    public static void setActive(TrafficShaper shaper) {
+        active = shaper;
+    }
+
+    /**
+     * @return A shaper with only the given limit
+     */
+    public static TrafficShaper of(Scope scope, long bytesPerSecond, long burst) {
+        return new TrafficShaper(new EnumMap<>(Scope.class), new LongAdder()).with(scope, bytesPerSecond, burst);
+    }
+
+    /**
+     * @param bytesPerSecond The new rate, 0 to remove the limit
+     * @param burst          The number of bytes that may pass at once after a pause
+     * @return A copy of this shaper with the given limit changed, or null if no limits are left
+     */
+    public TrafficShaper with(Scope scope, long bytesPerSecond, long burst) {
+        Map<Scope, long[]> changed = new EnumMap<>(Scope.class);
+        changed.putAll(limits);
+        if (bytesPerSecond > 0) {
+            changed.put(scope, new long[]{bytesPerSecond, Math.max(burst, 1)});
+        } else {
+            changed.remove(scope);
+        }
+        return changed.isEmpty() ? null : new TrafficShaper(changed, pauses);
+    }
+
+    /**
+     * @return The limit in bytes per second, 0 if the scope is not limited
+     */
+    public long getRate(Scope scope) {
+        long[] limit = limits.get(scope);
+        return limit == null ? 0 : limit[0];
+    }
+
+    public long getBurst(Scope scope) {
+        long[] limit = limits.get(scope);
+        return limit == null ? 0 : limit[1];
+    }
+
+    /**
+     * @return The number of times reading from a connection was paused to stay within the limits
+     */
+    public long getPauses() {
+        return pauses.sum();
+    }
+
+    /**
+     * Takes a read from the given connection out of every bucket it passes through, and pauses reading from the
+     * connection if one of them is in debt. Must be called from the event loop of the connection.
+     */
+    void charge(Connection sender, ConnectionGroup group, int bytes, boolean echo) {
+        long now = System.nanoTime();
+        long delay = 0;
+        long[] limit = limits.get(Scope.READ);
+        if (limit != null) {
+            TokenBucket bucket = sender.getReadBucket();
+            if (bucket == null || bucket.getOwner() != this) {
+                bucket = new TokenBucket(this, limit[0], limit[1]);
+                sender.setReadBucket(bucket);
+            }
+            delay = bucket.take(bytes, now);
+        }
+        limit = limits.get(Scope.CHANNEL);
+        if (limit != null) {
+            // Two members may replace an outdated bucket at once, the loser's bytes are then not counted once
+            TokenBucket bucket = group.getBucket();
+            if (bucket == null || bucket.getOwner() != this) {
+                bucket = new TokenBucket(this, limit[0], limit[1]);
+                group.setBucket(bucket);
+            }
+            delay = Math.max(delay, bucket.take(bytes, now));
+        }
+        if (global != null) {
+            delay = Math.max(delay, global.take(bytes, now));
+        }
+        limit = limits.get(Scope.WRITE);
+        if (limit != null) {
+            for (Connection receiver : group.getMembers()) {
+                if (receiver == sender && !echo) {
+                    continue;
+                }
+                TokenBucket bucket = receiver.getWriteBucket();
+                if (bucket == null || bucket.getOwner() != this) {
+                    bucket = new TokenBucket(this, limit[0], limit[1]);
+                    receiver.setWriteBucket(bucket);
+                }
+                delay = Math.max(delay, bucket.take(bytes, now));
+            }
+        }
+        if (delay > 0 && !sender.isPausedBy(Connection.PAUSED_BY_SHAPING)) {
+            pauses.increment();
+            sender.setPaused(Connection.PAUSED_BY_SHAPING, true);
+            sender.getChannel().eventLoop().schedule(() -> sender.setPaused(Connection.PAUSED_BY_SHAPING, false),
+                    delay, TimeUnit.NANOSECONDS);
+        }
+    }
+}
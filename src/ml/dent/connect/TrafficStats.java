@@ -0,0 +1,94 @@
+package ml.dent.connect;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the data forwarded through one connection group, or summed over many. Receiving a message counts
+ * it once as inbound, and once as outbound for every connection it is forwarded to.
+ */
+public class TrafficStats {
+    private LongAdder bytesIn     = new LongAdder();
+    private LongAdder bytesOut    = new LongAdder();
+    private LongAdder messagesIn  = new LongAdder();
+    private LongAdder messagesOut = new LongAdder();
+    private LongAdder pauses      = new LongAdder();
+    private LongAdder dropped     = new LongAdder();
+    private LongAdder slowClosed  = new LongAdder();
+
+    void recordForward(int bytes, int receivers) {
+        bytesIn.add(bytes);
+        messagesIn.increment();
+        if (receivers > 0) {
+            bytesOut.add((long) bytes * receivers);
+            messagesOut.add(receivers);
+        }
+    }
+
+    void recordPause() {
+        pauses.increment();
+    }
+
+    void recordDrop() {
+        dropped.increment();
+    }
+
+    void recordSlowDisconnect() {
+        slowClosed.increment();
+    }
+
+    /**
+     * Adds the current values of these counters to the given counters
+     */
+    void addTo(TrafficStats total) {
+        total.bytesIn.add(bytesIn.sum());
+        total.bytesOut.add(bytesOut.sum());
+        total.messagesIn.add(messagesIn.sum());
+        total.messagesOut.add(messagesOut.sum());
+        total.pauses.add(pauses.sum());
+        total.dropped.add(dropped.sum());
+        total.slowClosed.add(slowClosed.sum());
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    /**
+     * @return The number of times the group stopped reading because one of its members was overloaded
+     */
+    public long getPauses() {
+        return pauses.sum();
+    }
+
+    /**
+     * @return The number of messages not forwarded to a member because too much was already queued for it
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of members disconnected because too much was already queued for them
+     */
+    public long getSlowDisconnects() {
+        return slowClosed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("in: %d bytes / %d messages, out: %d bytes / %d messages, pauses: %d, dropped: %d, slow disconnects: %d",
+                getBytesIn(), getMessagesIn(), getBytesOut(), getMessagesOut(), getPauses(), getDropped(), getSlowDisconnects());
+    }
+}
@@ -0,0 +1,108 @@
+package ml.dent.net;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.CharsetUtil;
+import ml.dent.app.Console;
+import ml.dent.app.Logger;
+import ml.dent.app.Main;
+
+import java.net.InetAddress;
+
+/**
+ * A line based control server for operators. Any number of sessions can be open at once. Every line a session sends
+ * is run as a command on the command thread, never on an event loop, and its output is streamed back to that session
+ * only. Log messages are sent to all sessions.
+ */
+class ControlServer {
+
+    private static Logger logger = Logger.getInstance();
+
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    /**
+     * The number of bytes of command output queued beyond the write buffer water mark before a session is closed
+     */
+    private static final int MAX_BACKLOG = 1024 * 1024;
+
+    ChannelFuture listen(EventLoopGroup parentGroup, EventLoopGroup childGroup, Class<? extends ServerChannel> channelClass,
+                         InetAddress bindAddress, int bindPort) {
+        ServerBootstrap boot = new ServerBootstrap();
+        boot.group(parentGroup, childGroup).channel(channelClass)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new LineBasedFrameDecoder(MAX_LINE_LENGTH),
+                                new StringDecoder(CharsetUtil.UTF_8), new StringEncoder(CharsetUtil.UTF_8),
+                                new ControlSession());
+                    }
+                }).childOption(ChannelOption.SO_KEEPALIVE, true);
+        return boot.bind(bindAddress, bindPort);
+    }
+
+    private static class ControlSession extends SimpleChannelInboundHandler<String> implements Console {
+
+        private Channel channel;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            channel = ctx.channel();
+            logger.addConsole(this);
+            logger.logln(1, () -> "Control session opened from " + channel.remoteAddress());
+            channel.writeAndFlush("> ");
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            logger.removeConsole(this);
+            logger.logln(1, () -> "Control session closed from " + channel.remoteAddress());
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, String line) {
+            Main.submitCommand(this, line);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (cause instanceof TooLongFrameException) {
+                channel.writeAndFlush("Command too long\n> ");
+                return;
+            }
+            logger.logln(2, () -> "Control session error: " + cause);
+            ctx.close();
+        }
+
+        @Override
+        public void print(String text) {
+            if (channel.bytesBeforeWritable() > MAX_BACKLOG) {
+                // The client stopped reading, the rest of the output would only pile up in memory
+                channel.close();
+                return;
+            }
+            channel.writeAndFlush(text);
+        }
+
+        @Override
+        public void log(String text) {
+            if (channel.isWritable()) {
+                channel.writeAndFlush(text);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isActive();
+        }
+
+        @Override
+        public void close() {
+            channel.close();
+        }
+    }
+}
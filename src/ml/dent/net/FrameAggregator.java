@@ -0,0 +1,78 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * Combines consecutive frames decoded from one read batch into a single message, so every receiver gets one write
+ * for the batch instead of one per frame. The frames are combined without copying, a combined message only ever
+ * holds whole frames, and it never grows beyond the maximum frame size. Larger frames are passed on by themselves.
+ */
+class FrameAggregator extends ChannelInboundHandlerAdapter {
+
+    private static final int MAX_COMPONENTS = 64;
+
+    private int maxBytes;
+
+    /**
+     * A single frame, or a composite of several frames, waiting for the end of the read batch
+     */
+    private ByteBuf pending;
+
+    FrameAggregator(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof ByteBuf)) {
+            flush(ctx);
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf frame = (ByteBuf) msg;
+        if (pending != null && pending.readableBytes() + frame.readableBytes() > maxBytes) {
+            flush(ctx);
+        }
+        if (pending == null) {
+            pending = frame;
+            return;
+        }
+        CompositeByteBuf combined;
+        if (pending instanceof CompositeByteBuf) {
+            combined = (CompositeByteBuf) pending;
+        } else {
+            combined = ctx.alloc().compositeBuffer(MAX_COMPONENTS);
+            combined.addComponent(true, pending);
+            pending = combined;
+        }
+        combined.addComponent(true, frame);
+        if (combined.numComponents() == MAX_COMPONENTS) {
+            flush(ctx);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        flush(ctx);
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+    }
+
+    private void flush(ChannelHandlerContext ctx) {
+        if (pending != null) {
+            ByteBuf msg = pending;
+            pending = null;
+            ctx.fireChannelRead(msg);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * Splits the data of a connection in framing mode into frames of {@code [int length][length bytes]}. The length field
+ * is kept, so frames are forwarded exactly as they were received. A frame longer than the maximum frame size fails
+ * as soon as its length field is read, before any of it is buffered.
+ */
+class FrameDecoder extends LengthFieldBasedFrameDecoder {
+
+    static final int HEADER_LENGTH = 4;
+
+    /**
+     * @param maxFrame The largest payload a frame may carry, not counting the length field
+     */
+    FrameDecoder(int maxFrame) {
+        super(maxFrame + HEADER_LENGTH, 0, HEADER_LENGTH, 0, 0, true);
+    }
+
+    /**
+     * @return The bytes of the incomplete frame received so far, without copying them
+     */
+    ByteBuf pending() {
+        return internalBuffer();
+    }
+}
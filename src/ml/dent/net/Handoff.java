@@ -0,0 +1,395 @@
+package ml.dent.net;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.channel.unix.DomainSocketReadMode;
+import io.netty.channel.unix.FileDescriptor;
+import io.netty.channel.unix.UnixChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import ml.dent.app.Logger;
+import ml.dent.connect.Connection;
+import ml.dent.connect.ConnectionManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ml.dent.connect.Connection.State;
+
+/**
+ * Moves the listening sockets and open connections of this server process to a new one, so the server can be
+ * replaced without clients noticing. The old process listens on a unix domain socket and the new process connects to
+ * it. The old process then stops reading from every socket, waits until everything it forwarded has been written,
+ * and sends one frame of {@code [int length][int version][int listeners][int connections]} followed by
+ * {@code [int id][byte state][int channel][int authIndex][int hexChannel][int hexDigits][byte framed][int pending]}
+ * and the bytes of the incomplete frame a framed connection has received so far, for every connection.
+ * Once the new process asks for them with {@link #SEND_FDS}, the old process sends the file descriptors of the
+ * listening sockets and then those of the connections, in the order of the records. The new process answers
+ * {@link #DONE} once it took over every socket, and the old process exits.
+ * <p>
+ * Bytes the clients sent meanwhile wait in the kernel and are read by the new process. File descriptors can only be
+ * passed with the epoll transport.
+ */
+final class Handoff {
+    private static Logger logger = Logger.getInstance();
+
+    private static final int VERSION = 2;
+
+    private static final byte SEND_FDS = 'F';
+    private static final byte DONE     = 'D';
+
+    private static final long ACCEPT_TIMEOUT_SECONDS = 60;
+    private static final long DRAIN_TIMEOUT_MS       = 5000;
+    private static final long STEP_TIMEOUT_SECONDS   = 10;
+    private static final int  MAX_FRAME_LENGTH       = 1 << 30;
+
+    private Handoff() {
+    }
+
+    /**
+     * Waits for a new server process on the given path and hands everything over to it. If no process connects or
+     * the handoff fails before any socket was sent, reading resumes and this process keeps serving.
+     *
+     * @return The number of connections handed over. This process must exit without closing them.
+     */
+    static int send(EventLoopGroup group, Path socketPath, List<Channel> listeners, ConnectionManager connectionManager)
+            throws IOException, InterruptedException {
+        Files.deleteIfExists(socketPath);
+        BlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+        ServerBootstrap boot = new ServerBootstrap();
+        boot.group(group).channel(EpollServerDomainSocketChannel.class).childHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                inbox.add(ch);
+                ch.pipeline().addLast(new Inbox(inbox));
+            }
+        });
+        Channel server = boot.bind(new DomainSocketAddress(socketPath.toFile())).sync().channel();
+        try {
+            logger.logln("Waiting for the new server process on " + socketPath);
+            Channel successor = (Channel) inbox.poll(ACCEPT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (successor == null) {
+                throw new IOException("No server process connected within " + ACCEPT_TIMEOUT_SECONDS + " seconds");
+            }
+            server.close();
+
+            List<Connection> handed;
+            setListenersReading(listeners, false);
+            connectionManager.setHandoffPaused(true);
+            try {
+                handed = drain(connectionManager);
+                ByteBuf frame = successor.alloc().buffer();
+                frame.writeInt(0).writeInt(VERSION).writeInt(listeners.size()).writeInt(handed.size());
+                for (Connection connection : handed) {
+                    HandshakeDecoder handshake = connection.getChannel().pipeline().get(HandshakeDecoder.class);
+                    FrameDecoder framer = connection.getChannel().pipeline().get(FrameDecoder.class);
+                    ByteBuf pending = framer == null ? Unpooled.EMPTY_BUFFER : framer.pending();
+                    frame.writeInt(connection.getId()).writeByte(connection.getState().ordinal())
+                            .writeInt(connection.getChannelNumber())
+                            .writeInt(handshake == null ? 0 : handshake.getAuthIndex())
+                            .writeInt(handshake == null ? 0 : handshake.getChannelNum())
+                            .writeInt(handshake == null ? 0 : handshake.getHexDigits())
+                            .writeBoolean(connection.isFramed())
+                            .writeInt(pending.readableBytes())
+                            .writeBytes(pending, pending.readerIndex(), pending.readableBytes());
+                }
+                frame.setInt(0, frame.readableBytes() - 4);
+                successor.writeAndFlush(frame).sync();
+                expect(inbox, SEND_FDS);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                successor.close();
+                connectionManager.setHandoffPaused(false);
+                setListenersReading(listeners, true);
+                throw e;
+            }
+
+            // Past this point the new process may already own the sockets, so this one must not read from them again
+            for (Channel listener : listeners) {
+                successor.write(((UnixChannel) listener).fd());
+            }
+            for (Connection connection : handed) {
+                successor.write(((UnixChannel) connection.getChannel()).fd());
+            }
+            successor.flush();
+            try {
+                expect(inbox, DONE);
+            } catch (IOException e) {
+                logger.logln("The new server process did not confirm the handoff: " + e.getMessage());
+            }
+            return handed.size();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Waits until the outbound buffers of the paused connections are empty. Connections that cannot be flushed in
+     * time, because their client stopped reading, are closed instead of handed over.
+     */
+    private static List<Connection> drain(ConnectionManager connectionManager) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (true) {
+            List<Connection> handed = new ArrayList<>();
+            List<Connection> pending = new ArrayList<>();
+            for (Connection connection : connectionManager.getAllConnections()) {
+                Channel channel = connection.getChannel();
+                if (!channel.isOpen() || connection.getState() == State.REDIRECTED) {
+                    continue;
+                }
+                ChannelOutboundBuffer outbound = channel.unsafe().outboundBuffer();
+                if (outbound != null && outbound.totalPendingWriteBytes() > 0) {
+                    pending.add(connection);
+                } else {
+                    handed.add(connection);
+                }
+            }
+            if (pending.isEmpty()) {
+                return handed;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                for (Connection connection : pending) {
+                    connection.close("Could not flush before handoff");
+                }
+                return handed;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void setListenersReading(List<Channel> listeners, boolean reading) {
+        for (Channel listener : listeners) {
+            listener.config().setAutoRead(reading);
+        }
+    }
+
+    private static void expect(BlockingQueue<Object> inbox, byte expected) throws IOException, InterruptedException {
+        Object msg = inbox.poll(STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (msg == null) {
+            throw new IOException("Timed out waiting for the other server process");
+        }
+        if (!(msg instanceof Byte) || (Byte) msg != expected) {
+            throw new IOException("Unexpected message from the other server process: " + msg);
+        }
+    }
+
+    /**
+     * Connects to the previous server process on the given path and receives its sockets. The sockets belong to
+     * this process once this returns, and {@link Received#finish()} must be called after they were taken over.
+     */
+    static Received receive(EventLoopGroup group, Path socketPath) throws IOException, InterruptedException {
+        BlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+        Bootstrap boot = new Bootstrap();
+        boot.group(group).channel(EpollDomainSocketChannel.class)
+                // Edge-triggered reads may stop after the first file descriptor and never be woken up for the rest
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4), new Inbox(inbox));
+                    }
+                });
+        ChannelFuture connect = boot.connect(new DomainSocketAddress(socketPath.toFile())).await();
+        if (!connect.isSuccess()) {
+            throw new IOException("Could not connect to " + socketPath + ": " + connect.cause().getMessage());
+        }
+        EpollDomainSocketChannel channel = (EpollDomainSocketChannel) connect.channel();
+        try {
+            Object msg = inbox.poll(ACCEPT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!(msg instanceof ByteBuf)) {
+                throw new IOException("Did not receive the state of the previous server process");
+            }
+            ByteBuf frame = (ByteBuf) msg;
+            Received received;
+            try {
+                int version = frame.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported handoff version " + version);
+                }
+                received = new Received(channel, frame.readInt());
+                int count = frame.readInt();
+                State[] states = State.values();
+                for (int i = 0; i < count; i++) {
+                    Record record = new Record(frame.readInt(), states[frame.readByte()], frame.readInt(),
+                            frame.readInt(), frame.readInt(), frame.readInt());
+                    record.framed = frame.readBoolean();
+                    record.pending = new byte[frame.readInt()];
+                    frame.readBytes(record.pending);
+                    received.connections.add(record);
+                }
+            } finally {
+                frame.release();
+            }
+
+            // Nothing else is sent until the previous process receives SEND_FDS, so no bytes can be read in this mode
+            channel.config().setReadMode(DomainSocketReadMode.FILE_DESCRIPTORS);
+            channel.writeAndFlush(channel.alloc().buffer(1).writeByte(SEND_FDS)).sync();
+            for (int i = 0; i < received.listenerCount; i++) {
+                received.listeners.add(nextFd(inbox));
+            }
+            for (Record record : received.connections) {
+                record.fd = nextFd(inbox);
+            }
+            return received;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int nextFd(BlockingQueue<Object> inbox) throws IOException, InterruptedException {
+        Object msg = inbox.poll(STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!(msg instanceof FileDescriptor)) {
+            throw new IOException("Did not receive every socket from the previous server process");
+        }
+        return ((FileDescriptor) msg).intValue();
+    }
+
+    /**
+     * The sockets received from the previous server process
+     */
+    static class Received {
+        private EpollDomainSocketChannel channel;
+        private int                      listenerCount;
+
+        private List<Integer> listeners   = new ArrayList<>();
+        private List<Record>  connections = new ArrayList<>();
+
+        Received(EpollDomainSocketChannel channel, int listenerCount) {
+            this.channel = channel;
+            this.listenerCount = listenerCount;
+        }
+
+        List<Integer> getListeners() {
+            return listeners;
+        }
+
+        List<Record> getConnections() {
+            return connections;
+        }
+
+        /**
+         * Tells the previous server process that its sockets were taken over, and waits until it exited and released
+         * the ports it served on its own
+         */
+        void finish() throws InterruptedException {
+            channel.writeAndFlush(channel.alloc().buffer(1).writeByte(DONE));
+            if (!channel.closeFuture().await(STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.logln("The previous server process did not exit after the handoff");
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * One connection of the previous server process, with the progress of its handshake
+     */
+    static class Record {
+        private int   id;
+        private State state;
+        private int   channelNumber;
+        private int   authIndex;
+        private int   hexChannel;
+        private int   hexDigits;
+        private int   fd;
+
+        private boolean framed;
+        private byte[]  pending;
+
+        Record(int id, State state, int channelNumber, int authIndex, int hexChannel, int hexDigits) {
+            this.id = id;
+            this.state = state;
+            this.channelNumber = channelNumber;
+            this.authIndex = authIndex;
+            this.hexChannel = hexChannel;
+            this.hexDigits = hexDigits;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        int getChannelNumber() {
+            return channelNumber;
+        }
+
+        int getAuthIndex() {
+            return authIndex;
+        }
+
+        int getHexChannel() {
+            return hexChannel;
+        }
+
+        int getHexDigits() {
+            return hexDigits;
+        }
+
+        int getFd() {
+            return fd;
+        }
+
+        boolean isFramed() {
+            return framed;
+        }
+
+        /**
+         * @return The start of a frame the connection had not received completely, empty if there is none
+         */
+        byte[] getPending() {
+            return pending;
+        }
+    }
+
+    /**
+     * Hands every message to the thread running the handoff. Single bytes are unpacked, so the control messages can
+     * be read no matter how they were split into packets.
+     */
+    private static class Inbox extends ChannelInboundHandlerAdapter {
+        private BlockingQueue<Object> inbox;
+
+        Inbox(BlockingQueue<Object> inbox) {
+            this.inbox = inbox;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof ByteBuf && ctx.pipeline().get(LengthFieldBasedFrameDecoder.class) == null) {
+                ByteBuf buf = (ByteBuf) msg;
+                while (buf.isReadable()) {
+                    inbox.add(buf.readByte());
+                }
+                buf.release();
+                return;
+            }
+            inbox.add(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            inbox.add("closed");
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.logln("Handoff connection failed: " + cause.getMessage());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.CharsetUtil;
+import ml.dent.app.Main;
+import ml.dent.connect.Connection;
+import ml.dent.connect.ConnectionManager;
+
+import static ml.dent.connect.Connection.State;
+
+/**
+ * Parses the authentication string and hex channel number directly from the received buffers, without copying
+ * them. Partial progress is kept in this handler, so the handshake may be split across any number of packets.
+ * Once the connection has joined its channel, this handler removes itself from the pipeline and passes any
+ * remaining bytes on as a slice of the original buffer. If the channel number is directly followed by
+ * {@link #FRAMING_MARKER}, this handler is replaced by the handlers of framing mode instead. The marker is only seen
+ * in the same packet as the last hex digit: clients may wait for the reply before sending more, so the channel is
+ * joined as soon as a packet ends after the channel number. Joining may complete later, after the connection has
+ * moved to the event loop of its channel, and bytes received in the meantime are held here until it has.
+ */
+class HandshakeDecoder extends ChannelInboundHandlerAdapter {
+
+    static final byte FRAMING_MARKER = '/';
+
+    private ConnectionManager connectionManager;
+
+    private byte[] authString;
+    private int    maxHexLen;
+
+    private int authIndex;
+    private int channelNum;
+    private int hexDigits;
+
+    /**
+     * Set once the channel number is complete. Bytes received after it are held in pending until the connection has
+     * joined its channel.
+     */
+    private boolean joining;
+    private ByteBuf pending;
+
+    HandshakeDecoder(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+        this.authString = Main.getAuthString().getBytes(CharsetUtil.UTF_8);
+        this.maxHexLen = Integer.toHexString(ConnectionManager.MAX_PAIRS).length();
+    }
+
+    /**
+     * Continues a handshake the previous server process had already started
+     */
+    HandshakeDecoder(ConnectionManager connectionManager, int authIndex, int channelNum, int hexDigits) {
+        this(connectionManager);
+        this.authIndex = authIndex;
+        this.channelNum = channelNum;
+        this.hexDigits = hexDigits;
+    }
+
+    int getAuthIndex() {
+        return authIndex;
+    }
+
+    int getChannelNum() {
+        return channelNum;
+    }
+
+    int getHexDigits() {
+        return hexDigits;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf buf = (ByteBuf) msg;
+        if (joining) {
+            hold(ctx, buf);
+            return;
+        }
+        Connection connection = ctx.channel().attr(Connection.CONNECTION).get();
+        try {
+            int i = buf.readerIndex();
+            int end = buf.writerIndex();
+
+            if (connection.getState() == State.CONNECTED) {
+                while (i < end && authIndex < authString.length) {
+                    if (buf.getByte(i) != authString[authIndex]) {
+                        connection.write("Authentication failure");
+                        connection.close("Authentication failure");
+                        return;
+                    }
+                    i++;
+                    authIndex++;
+                }
+                if (authIndex < authString.length) {
+                    // end of packet, more to auth string
+                    return;
+                }
+                connection.setState(State.AUTHENTICATED);
+            }
+
+            while (i < end && hexDigits < maxHexLen) {
+                int digit = Character.digit((char) (buf.getByte(i) & 0xFF), 16);
+                if (digit < 0) {
+                    break;
+                }
+                channelNum = (channelNum << 4) | digit;
+                hexDigits++;
+                i++;
+            }
+            if (hexDigits == 0) {
+                if (i == end) {
+                    // auth string ended exactly at the end of the packet, channel number comes next
+                    return;
+                }
+                connection.write("Failed to negotiate channel number");
+                connection.close("Failed to negotiate channel number");
+                return;
+            }
+            // The channel number ends after maxHexLen digits, a non-hex byte, or the end of the packet
+            boolean framed = i < end && buf.getByte(i) == FRAMING_MARKER;
+            if (framed) {
+                connection.setFramed(true);
+                i++;
+            }
+            joining = true;
+            if (i != end) {
+                pending = buf.retainedSlice(i, end - i);
+            }
+            connectionManager.joinChannel(connection, channelNum, () -> joined(ctx, framed));
+        } finally {
+            buf.release();
+        }
+    }
+
+    private void hold(ChannelHandlerContext ctx, ByteBuf buf) {
+        if (pending == null) {
+            pending = buf;
+            return;
+        }
+        CompositeByteBuf combined;
+        if (pending instanceof CompositeByteBuf) {
+            combined = (CompositeByteBuf) pending;
+        } else {
+            combined = ctx.alloc().compositeBuffer();
+            combined.addComponent(true, pending);
+            pending = combined;
+        }
+        combined.addComponent(true, buf);
+    }
+
+    /**
+     * Hands the connection over to the handlers of its mode and passes on the bytes received after the handshake
+     */
+    private void joined(ChannelHandlerContext ctx, boolean framed) {
+        ByteBuf remaining = pending;
+        pending = null;
+        if (framed) {
+            // The remaining bytes are passed on to the replacement
+            ctx.pipeline().replace(this, "frameDecoder", new FrameDecoder(Main.getMaxFrame()));
+            ctx.pipeline().addAfter("frameDecoder", "frameAggregator", new FrameAggregator(Main.getMaxFrame()));
+        } else {
+            ctx.pipeline().remove(this);
+        }
+        if (remaining != null) {
+            ctx.fireChannelRead(remaining);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        // A connection closed while moving to the event loop of its channel is never unregistered
+        release();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        release();
+    }
+
+    private void release() {
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+    }
+}
@@ -2,18 +2,34 @@ package ml.dent.net;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.concurrent.EventExecutor;
 import ml.dent.app.Logger;
 import ml.dent.app.Main;
+import ml.dent.cluster.ClusterNode;
+import ml.dent.connect.ChannelRing;
+import ml.dent.connect.ChannelStats;
 import ml.dent.connect.Connection;
 import ml.dent.connect.ConnectionManager;
+import ml.dent.connect.OutboundBudget;
+import ml.dent.connect.ServerStats;
+import ml.dent.connect.SlowMemberPolicy;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 public class MainServer {
 
@@ -25,6 +41,8 @@ public class MainServer {
 
     private ConnectionManager connectionManager;
 
+    private ClusterNode clusterNode;
+
     public MainServer(int bindPort) {
         this(bindPort, 50);
     }
@@ -47,34 +65,284 @@ public class MainServer {
     private EventLoopGroup parentGroup;
     private EventLoopGroup childGroup;
 
+    private Transport transport;
+
+    private List<Channel> serverChannels = new ArrayList<>();
+
+    /**
+     * Completed when the server is closed. Closing the listeners to drain the server does not count.
+     */
+    private ChannelPromise   closed;
+    private volatile boolean draining;
+
     /**
      * @return A {@link ChannelFuture} that will be notified when the server is
      * closed.
      * @throws InterruptedException If the server is interrupted while trying to
      *                              bind.
+     * @throws IOException          If the sockets of the previous server process could not be taken over
      */
-    public ChannelFuture listen() throws InterruptedException {
-        parentGroup = new EpollEventLoopGroup();
-        childGroup = new EpollEventLoopGroup();
+    public ChannelFuture listen() throws InterruptedException, IOException {
+        transport = Main.getTransport();
+        if (!transport.isAvailable()) {
+            Transport fallback = Transport.best();
+            logger.logln(transport + " transport is not available, falling back to " + fallback);
+            transport = fallback;
+        }
+        int listeners = Main.getListeners();
+        if (listeners > 1 && transport != Transport.EPOLL) {
+            logger.logln("Multiple listeners require the epoll transport, binding a single listener");
+            listeners = 1;
+        }
+        int bossThreads = Main.getBossThreads();
+        if (bossThreads != 0 && bossThreads < listeners) {
+            // every listener gets its own accepting thread
+            bossThreads = listeners;
+        }
+        parentGroup = transport.newEventLoopGroup(bossThreads);
+        childGroup = transport.newEventLoopGroup(Main.getWorkerThreads());
+        logger.logln("Using " + transport + " transport with " + threadCount(parentGroup) + " boss and "
+                + threadCount(childGroup) + " worker threads");
+        if (Main.getGroupAffinity()) {
+            connectionManager.setGroupAffinity(childGroup);
+        }
+        if (Main.getOutboundBudget() > 0) {
+            connectionManager.setOutboundBudget(Main.getOutboundBudget());
+        }
+        if (Main.getClusterPort() > 0 || !Main.getPeers().isEmpty()) {
+            clusterNode = new ClusterNode(connectionManager, Main.getClusterSecret());
+            connectionManager.setBridge(clusterNode);
+        }
+        Handoff.Received takeover = null;
+        if (Main.getTakeoverPath() != null) {
+            takeover = Handoff.receive(parentGroup, Main.getTakeoverPath());
+        }
 
         ServerBootstrap boot = new ServerBootstrap();
-        boot.group(parentGroup, childGroup).channel(EpollServerSocketChannel.class)
+        boot.group(parentGroup, childGroup)
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) {
-                        ch.pipeline().addLast(new ServerHandler());
+                        ch.pipeline().addLast(new HandshakeDecoder(connectionManager), new ServerHandler());
                     }
-                }).option(ChannelOption.SO_BACKLOG, backlog).childOption(ChannelOption.SO_KEEPALIVE, true);
+                }).option(ChannelOption.SO_BACKLOG, backlog).childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(Main.getWriteLowWaterMark(), Main.getWriteHighWaterMark()));
+        if (Main.getSplice() && transport == Transport.EPOLL) {
+            // splice(2) forwarding is only supported for level-triggered channels
+            boot.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
 
-        ChannelFuture future = boot.bind(bindAddress, bindPort).sync();
-        return future.channel().closeFuture();
+        if (listeners > 1) {
+            // Each bind creates its own listen queue, the kernel spreads incoming connections across them
+            boot.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+
+        if (takeover != null) {
+            restoreConnections(takeover.getConnections());
+            for (int fd : takeover.getListeners()) {
+                // The listening socket is already bound, registering it starts accepting where the previous process stopped
+                serverChannels.add(boot.clone().channelFactory((ChannelFactory<ServerChannel>) () -> new EpollServerSocketChannel(fd))
+                        .register().sync().channel());
+            }
+            logger.logln("Took over " + takeover.getListeners().size() + " listeners and "
+                    + takeover.getConnections().size() + " connections from the previous server process");
+            takeover.finish();
+        } else {
+            boot.channel(transport.serverChannelClass());
+            for (int i = 0; i < listeners; i++) {
+                serverChannels.add(boot.bind(bindAddress, bindPort).sync().channel());
+            }
+            if (listeners > 1) {
+                logger.logln("Bound " + listeners + " listeners with SO_REUSEPORT");
+            }
+        }
+        closed = serverChannels.get(0).newPromise();
+        for (Channel serverChannel : serverChannels) {
+            serverChannel.closeFuture().addListener(future -> {
+                if (!draining) {
+                    closed.trySuccess();
+                }
+            });
+        }
+        if (Main.getMetricsPort() > 0) {
+            new MetricsServer(connectionManager).listen(parentGroup, childGroup, transport.serverChannelClass(),
+                    InetAddress.getLoopbackAddress(), Main.getMetricsPort()).sync();
+            logger.logln("Serving metrics on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                    + Main.getMetricsPort() + "/metrics");
+        }
+        if (clusterNode != null) {
+            if (Main.getClusterPort() > 0) {
+                clusterNode.listen(parentGroup, childGroup, transport, Main.getClusterAddress(), Main.getClusterPort()).sync();
+            }
+            for (String peer : Main.getPeers()) {
+                int colon = peer.lastIndexOf(':');
+                clusterNode.connect(childGroup, transport, peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+            }
+            logger.logln("Cluster node " + Long.toHexString(clusterNode.getNodeId())
+                    + (Main.getClusterPort() > 0 ? " listening on " + Main.getClusterAddress().getHostAddress() + ":"
+                    + Main.getClusterPort() : " not accepting links")
+                    + ", connecting to " + Main.getPeers().size() + " peers");
+        }
+        if (Main.getControlPort() > 0) {
+            new ControlServer().listen(parentGroup, childGroup, transport.serverChannelClass(),
+                    Main.getControlAddress(), Main.getControlPort()).sync();
+            logger.logln("Control server listening on " + Main.getControlAddress().getHostAddress() + ":"
+                    + Main.getControlPort());
+        }
+        return closed;
+    }
+
+    /**
+     * Sets up the connections handed over by the previous server process. Connections that had joined a channel
+     * join it again, the others continue their handshake where they left off.
+     */
+    private void restoreConnections(List<Handoff.Record> records) {
+        int[] ids = new int[records.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = records.get(i).getId();
+        }
+        connectionManager.reserveIds(ids);
+        WriteBufferWaterMark waterMark = new WriteBufferWaterMark(Main.getWriteLowWaterMark(), Main.getWriteHighWaterMark());
+        for (Handoff.Record record : records) {
+            EpollSocketChannel ch = new EpollSocketChannel(record.getFd());
+            ch.config().setWriteBufferWaterMark(waterMark);
+            if (Main.getSplice()) {
+                ch.config().setEpollMode(EpollMode.LEVEL_TRIGGERED);
+            }
+            ch.pipeline().addLast(new RestoreHandler(record));
+            if (record.getState() == Connection.State.CONNECTED || record.getState() == Connection.State.AUTHENTICATED) {
+                ch.pipeline().addLast(new HandshakeDecoder(connectionManager, record.getAuthIndex(),
+                        record.getHexChannel(), record.getHexDigits()));
+            } else if (record.isFramed()) {
+                ch.pipeline().addLast("frameDecoder", new FrameDecoder(Main.getMaxFrame()));
+                ch.pipeline().addLast("frameAggregator", new FrameAggregator(Main.getMaxFrame()));
+            }
+            ch.pipeline().addLast(new ServerHandler());
+            childGroup.register(ch);
+        }
+    }
+
+    private static int threadCount(EventLoopGroup group) {
+        int count = 0;
+        for (EventExecutor ignored : group) {
+            count++;
+        }
+        return count;
+    }
+
+    ConnectionManager getConnectionManager() {
+        return connectionManager;
     }
 
     public Collection<Connection> getConnections() {
         return connectionManager.getAllConnections();
     }
 
+    public ServerStats getStats() {
+        return connectionManager.getStats();
+    }
+
+    public List<ChannelStats> getChannelStats() {
+        return connectionManager.getChannelStats();
+    }
+
+    /**
+     * Replaces the ring deciding which channels this server accepts
+     *
+     * @see ConnectionManager#setRing(ChannelRing)
+     */
+    public void setRing(ChannelRing ring) {
+        connectionManager.setRing(ring);
+    }
+
+    /**
+     * @return The channel ring, or null if this server accepts every channel
+     */
+    public ChannelRing getRing() {
+        return connectionManager.getRing();
+    }
+
+    /**
+     * @see ConnectionManager#getMovedChannels()
+     */
+    public List<Integer> getMovedChannels() {
+        return connectionManager.getMovedChannels();
+    }
+
+    /**
+     * @see ConnectionManager#setChannelPolicy(int, SlowMemberPolicy)
+     */
+    public void setChannelPolicy(int channelNum, SlowMemberPolicy policy) {
+        connectionManager.setChannelPolicy(channelNum, policy);
+    }
+
+    /**
+     * @see ConnectionManager#defaultPolicyChanged()
+     */
+    public void defaultPolicyChanged() {
+        connectionManager.defaultPolicyChanged();
+    }
+
+    /**
+     * @see ConnectionManager#getChannelPolicies()
+     */
+    public Map<Integer, SlowMemberPolicy> getChannelPolicies() {
+        return connectionManager.getChannelPolicies();
+    }
+
+    /**
+     * @return The server-wide outbound budget, or null if none is set
+     */
+    public OutboundBudget getOutboundBudget() {
+        return connectionManager.getOutboundBudget();
+    }
+
+    /**
+     * @return The cluster node of this server, or null if clustering is disabled
+     */
+    public ClusterNode getClusterNode() {
+        return clusterNode;
+    }
+
+    /**
+     * Hands the listening sockets and every connection over to a new server process started with --takeover on the
+     * given path. Blocks until the new process took over, or until the handoff failed, in which case this server
+     * keeps serving.
+     *
+     * @return The number of connections handed over. This process must exit without closing the server.
+     */
+    public int upgrade(Path socketPath) throws IOException, InterruptedException {
+        if (transport != Transport.EPOLL) {
+            throw new IOException("Handing over connections requires the epoll transport");
+        }
+        if (clusterNode != null) {
+            throw new IOException("Handing over connections is not supported while clustering is enabled");
+        }
+        if (draining) {
+            throw new IOException("The server is draining and no longer owns its listeners");
+        }
+        return Handoff.send(childGroup, socketPath, serverChannels, connectionManager);
+    }
+
+    /**
+     * Stops accepting connections, so a new server process can bind the port while the open connections finish
+     */
+    public void drain() {
+        draining = true;
+        for (Channel serverChannel : serverChannels) {
+            serverChannel.close();
+        }
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
     public void close() {
+        if (connectionManager.getOutboundBudget() != null) {
+            connectionManager.getOutboundBudget().stop();
+        }
         parentGroup.shutdownGracefully();
         childGroup.shutdownGracefully();
     }
@@ -87,11 +355,48 @@ public class MainServer {
         return connectionManager.kill(id);
     }
 
+    /**
+     * Registers a connection received from the previous server process in place of the greeting of a new connection
+     */
+    class RestoreHandler extends ChannelInboundHandlerAdapter {
+        private Handoff.Record record;
+
+        RestoreHandler(Handoff.Record record) {
+            this.record = record;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            Connection connection = new Connection(ctx.channel());
+            connection.setId(record.getId());
+            connection.setFramed(record.isFramed());
+            connectionManager.restore(connection);
+            ChannelPipeline pipeline = ctx.pipeline();
+            pipeline.remove(this);
+            Runnable deliverPending = () -> {
+                if (record.getPending().length > 0) {
+                    pipeline.fireChannelRead(Unpooled.wrappedBuffer(record.getPending()));
+                }
+            };
+            if (record.getState() == Connection.State.AUTHENTICATED) {
+                connection.setState(Connection.State.AUTHENTICATED);
+                deliverPending.run();
+            } else if (record.getState() != Connection.State.CONNECTED) {
+                // Only delivered once the connection is back in its group, which may be on another event loop
+                connectionManager.rejoinChannel(connection, record.getChannelNumber(), deliverPending);
+            } else {
+                deliverPending.run();
+            }
+            logger.logln(2, () -> connection + " taken over from the previous server process");
+            // Not passed on, the client was already greeted by the previous process
+        }
+    }
+
     class ServerHandler extends ChannelInboundHandlerAdapter {
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
             Connection connection = new Connection(ctx.channel());
-            logger.logln(ctx.channel().remoteAddress() + " connected");
+            logger.logln(1, () -> ctx.channel().remoteAddress() + " connected");
             connection.write(Integer.toHexString(ConnectionManager.MAX_PAIRS).length() + "-" + "BounceServer_" + Main.VERSION + "\n");
             connectionManager.register(connection);
             super.channelActive(ctx);
@@ -99,31 +404,29 @@ public class MainServer {
 
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-            Connection connection = connectionManager.get(ctx.channel().remoteAddress());
-            logger.logln(connection.remoteAddress() + " disconnected: " + connection.getCloseReason());
+            Connection connection = ctx.channel().attr(Connection.CONNECTION).get();
+            connection.flushPeers();
+            logger.logln(1, () -> connection.remoteAddress() + " disconnected: " + connection.getCloseReason());
             connectionManager.remove(connection);
             super.channelInactive(ctx);
         }
 
         @Override
         public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            Connection connection = ctx.channel().attr(Connection.CONNECTION).get();
             if (ctx.channel().isWritable()) {
-                connectionManager.setReady(ctx.channel().remoteAddress());
+                connectionManager.setReady(connection);
             } else {
-                connectionManager.setOverloaded(ctx.channel().remoteAddress());
+                connectionManager.setOverloaded(connection);
             }
             super.channelWritabilityChanged(ctx);
         }
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            Connection connection = ctx.channel().attr(Connection.CONNECTION).get();
             if (Main.getVerbosity() >= 3 && Main.getVerboseChannel() == -1) {
-                Connection connection = connectionManager.get(ctx.channel().remoteAddress());
-                if (connection != null) {
-                    logger.logln(connection + ": " + msg);
-                } else {
-                    logger.logln(ctx.channel().remoteAddress() + ": " + msg);
-                }
+                logger.logln(connection + ": " + msg);
                 if (Main.getVerbosity() >= 4) {
                     ByteBuf buf = (ByteBuf) msg;
                     byte[] bytes = new byte[buf.readableBytes()];
@@ -131,17 +434,28 @@ public class MainServer {
                     logger.logln(Arrays.toString(bytes));
                 }
             }
-            connectionManager.handleConnectionRead(ctx.channel().remoteAddress(), msg);
+            connectionManager.handleConnectionRead(connection, msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            Connection connection = ctx.channel().attr(Connection.CONNECTION).get();
+            if (connection != null) {
+                connection.flushPeers();
+                connectionManager.readComplete(connection);
+            }
+            ctx.fireChannelReadComplete();
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            Connection connection = connectionManager.get(ctx.channel().remoteAddress());
+            Connection connection = ctx.channel().attr(Connection.CONNECTION).get();
             if (connection != null) {
                 if (Main.getVerbosity() >= 2) {
                     logger.log(cause);
                 }
-                connectionManager.get(ctx.channel().remoteAddress()).close(cause.getMessage());
+                connection.close(cause instanceof TooLongFrameException
+                        ? "Sent a frame larger than " + Main.getMaxFrame() + " bytes" : cause.getMessage());
             } else {
                 logger.log(cause);
                 ctx.close();
@@ -0,0 +1,122 @@
+package ml.dent.net;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import ml.dent.connect.ChannelStats;
+import ml.dent.connect.ConnectionManager;
+import ml.dent.connect.ServerStats;
+import ml.dent.connect.TrafficStats;
+
+import java.net.InetAddress;
+
+/**
+ * Serves the server counters in the Prometheus text format on /metrics. Runs on the event loops of the bounce server
+ * and only reads counters, so a scrape never blocks forwarding.
+ */
+class MetricsServer {
+
+    private ConnectionManager connectionManager;
+
+    MetricsServer(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    ChannelFuture listen(EventLoopGroup parentGroup, EventLoopGroup childGroup, Class<? extends ServerChannel> channelClass,
+                         InetAddress bindAddress, int bindPort) {
+        ServerBootstrap boot = new ServerBootstrap();
+        boot.group(parentGroup, childGroup).channel(channelClass)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(4096), new MetricsHandler());
+                    }
+                });
+        return boot.bind(bindAddress, bindPort);
+    }
+
+    String render() {
+        StringBuilder sb = new StringBuilder();
+        ServerStats stats = connectionManager.getStats();
+        TrafficStats traffic = stats.getTraffic();
+        counter(sb, "bounce_bytes_in_total", "Bytes received from clients after the handshake", traffic.getBytesIn());
+        counter(sb, "bounce_bytes_out_total", "Bytes forwarded to clients", traffic.getBytesOut());
+        counter(sb, "bounce_messages_in_total", "Reads received from clients after the handshake", traffic.getMessagesIn());
+        counter(sb, "bounce_messages_out_total", "Messages forwarded to clients", traffic.getMessagesOut());
+        counter(sb, "bounce_backpressure_pauses_total", "Times a group stopped reading because a member was overloaded", traffic.getPauses());
+        counter(sb, "bounce_slow_member_drops_total", "Messages not forwarded to a member because too much was queued for it", traffic.getDropped());
+        counter(sb, "bounce_slow_member_disconnects_total", "Members disconnected because too much was queued for them", traffic.getSlowDisconnects());
+        counter(sb, "bounce_handshakes_started_total", "Connections accepted", stats.getHandshakesStarted());
+        counter(sb, "bounce_handshakes_completed_total", "Connections that joined a channel", stats.getHandshakesCompleted());
+        counter(sb, "bounce_handshakes_failed_total", "Connections closed before joining a channel", stats.getHandshakesFailed());
+        counter(sb, "bounce_handshakes_redirected_total", "Connections sent to the server that owns their channel", stats.getHandshakesRedirected());
+        gauge(sb, "bounce_active_groups", "Connection groups with at least one member", stats.getActiveGroups());
+        gauge(sb, "bounce_connections", "Open client connections", stats.getConnections());
+
+        Iterable<ChannelStats> channels = connectionManager.getChannelStats();
+        sb.append("# HELP bounce_channel_bytes_in_total Bytes received from clients per channel\n");
+        sb.append("# TYPE bounce_channel_bytes_in_total counter\n");
+        for (ChannelStats channel : channels) {
+            sb.append("bounce_channel_bytes_in_total{channel=\"").append(channel.getChannelNumber()).append("\"} ")
+                    .append(channel.getTraffic().getBytesIn()).append('\n');
+        }
+        sb.append("# HELP bounce_channel_bytes_out_total Bytes forwarded to clients per channel\n");
+        sb.append("# TYPE bounce_channel_bytes_out_total counter\n");
+        for (ChannelStats channel : channels) {
+            sb.append("bounce_channel_bytes_out_total{channel=\"").append(channel.getChannelNumber()).append("\"} ")
+                    .append(channel.getTraffic().getBytesOut()).append('\n');
+        }
+        sb.append("# HELP bounce_channel_members Members per channel\n");
+        sb.append("# TYPE bounce_channel_members gauge\n");
+        for (ChannelStats channel : channels) {
+            sb.append("bounce_channel_members{channel=\"").append(channel.getChannelNumber()).append("\"} ")
+                    .append(channel.getMembers()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        metric(sb, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        metric(sb, name, help, "gauge", value);
+    }
+
+    private static void metric(StringBuilder sb, String name, String help, String type, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private class MetricsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            FullHttpResponse response;
+            if (request.method() == HttpMethod.GET && new QueryStringDecoder(request.uri()).path().equals("/metrics")) {
+                ByteBuf content = Unpooled.copiedBuffer(render(), CharsetUtil.UTF_8);
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+            } else {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+            }
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            if (keepAlive) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
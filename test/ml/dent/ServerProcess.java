@@ -0,0 +1,296 @@
+package ml.dent;
+
+import io.netty.channel.Channel;
+import ml.dent.app.Main;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounce server running in a JVM of its own on loopback, driven through its command prompt. The server keeps its
+ * configuration in static fields, so every server of a test needs its own process.
+ */
+public class ServerProcess implements Closeable {
+
+    private static final long TIMEOUT_MS = 30_000;
+
+    private Process process;
+    private Writer  commands;
+    private int     port;
+
+    /**
+     * Everything the server printed so far, one entry per line. Guarded by itself.
+     */
+    private List<String> output = new ArrayList<>();
+
+    private ServerProcess(Process process, int port) {
+        this.process = process;
+        this.port = port;
+        this.commands = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+        Thread reader = new Thread(this::readOutput, "server-" + port + "-output");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Starts a server on the given port and waits until it accepts connections
+     *
+     * @param args Further command line arguments of the server
+     */
+    public static ServerProcess start(int port, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(classPath(Main.class) + File.pathSeparator + classPath(Channel.class));
+        command.add(Main.class.getName());
+        command.add("-p");
+        command.add(Integer.toString(port));
+        command.addAll(Arrays.asList(args));
+        ServerProcess server = new ServerProcess(new ProcessBuilder(command).redirectErrorStream(true).start(), port);
+        try {
+            server.awaitOutput("Server started");
+        } catch (AssertionError e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    /**
+     * @return A port on loopback that nothing listens on at the moment
+     */
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String classPath(Class<?> type) {
+        try {
+            return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return The address of this server as clients and ring files name it
+     */
+    public String getAddress() {
+        return InetAddress.getLoopbackAddress().getHostAddress() + ":" + port;
+    }
+
+    /**
+     * Runs a command at the prompt of the server
+     */
+    public void command(String line) throws IOException {
+        commands.write(line + "\n");
+        commands.flush();
+    }
+
+    /**
+     * Waits until the server has printed a line containing the given text
+     *
+     * @throws AssertionError If no such line is printed in time
+     */
+    public void awaitOutput(String text) {
+        awaitLine(text, 0);
+    }
+
+    /**
+     * Runs a command at the prompt of the server and waits for its output
+     *
+     * @return The first line containing the given text printed after the command was sent
+     * @throws AssertionError If no such line is printed in time
+     */
+    public String query(String line, String text) throws IOException {
+        int from;
+        synchronized (output) {
+            from = output.size();
+        }
+        command(line);
+        return awaitLine(text, from);
+    }
+
+    private String awaitLine(String text, int from) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        synchronized (output) {
+            while (true) {
+                for (int i = from; i < output.size(); i++) {
+                    if (output.get(i).contains(text)) {
+                        return output.get(i);
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !process.isAlive()) {
+                    throw new AssertionError("Server on port " + port + " never printed \"" + text + "\":\n"
+                            + String.join("\n", output));
+                }
+                try {
+                    output.wait(Math.min(remaining, 100));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AssertionError(e);
+                }
+            }
+        }
+    }
+
+    private void readOutput() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                synchronized (output) {
+                    output.add(line);
+                    output.notifyAll();
+                }
+            }
+        } catch (IOException ignored) {
+            // the process is gone
+        }
+    }
+
+    @Override
+    public void close() {
+        process.destroy();
+        try {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A client connection that has gone through the handshake
+     */
+    public static class Client implements Closeable {
+
+        private Socket socket;
+        private String reply;
+
+        /**
+         * Connects to the given server and asks to join the given channel
+         */
+        public Client(int port, int channel) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            InputStream in = socket.getInputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Server closed the connection before sending its version");
+                }
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(("hi" + String.format("%04x", channel)).getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String start = new String(readFully(5), StandardCharsets.US_ASCII);
+            if (start.equals("READY")) {
+                reply = start;
+            } else {
+                // Anything else is closed by the server once sent
+                ByteArrayOutputStream rest = new ByteArrayOutputStream();
+                rest.write(start.getBytes(StandardCharsets.US_ASCII));
+                while ((b = in.read()) >= 0) {
+                    rest.write(b);
+                }
+                reply = new String(rest.toByteArray(), StandardCharsets.US_ASCII);
+            }
+        }
+
+        /**
+         * @return The port of the server this client is connected to
+         */
+        public int getPort() {
+            return socket.getPort();
+        }
+
+        /**
+         * @return READY, or the reason the server did not let this client join, such as REDIRECT host:port
+         */
+        public String getReply() {
+            return reply;
+        }
+
+        public boolean isReady() {
+            return reply.equals("READY");
+        }
+
+        /**
+         * @return The port this client was redirected to, or -1 if it was not redirected
+         */
+        public int getRedirectPort() {
+            if (!reply.startsWith("REDIRECT ")) {
+                return -1;
+            }
+            return Integer.parseInt(reply.substring(reply.lastIndexOf(':') + 1));
+        }
+
+        public void send(byte[] data) throws IOException {
+            socket.getOutputStream().write(data);
+            socket.getOutputStream().flush();
+        }
+
+        /**
+         * Reads exactly the given number of bytes
+         */
+        public byte[] readFully(int length) throws IOException {
+            byte[] data = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int count = socket.getInputStream().read(data, read, length - read);
+                if (count < 0) {
+                    throw new IOException("Connection closed after " + read + " of " + length + " bytes");
+                }
+                read += count;
+            }
+            return data;
+        }
+
+        /**
+         * @return true if nothing arrives within the given time
+         */
+        public boolean isSilent(int millis) throws IOException {
+            socket.setSoTimeout(millis);
+            try {
+                socket.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout((int) TIMEOUT_MS);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ml.dent.cluster;
+
+import ml.dent.ServerProcess;
+import ml.dent.ServerProcess.Client;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Links servers into a cluster on loopback, with every server in its own process
+ */
+public class ClusterLinkTest {
+
+    private static final String SECRET = "cluster-test-secret";
+
+    private static final int CHANNEL = 0x2a;
+
+    private List<ServerProcess> servers = new ArrayList<>();
+
+    @After
+    public void stopServers() {
+        for (ServerProcess server : servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void linkedServersShareChannels() throws IOException {
+        int clusterPort = ServerProcess.freePort();
+        ServerProcess a = start("--cluster-port", Integer.toString(clusterPort), "--cluster-secret", SECRET);
+        ServerProcess b = start("--peer", "127.0.0.1:" + clusterPort, "--cluster-secret", SECRET);
+        a.awaitOutput("established");
+        b.awaitOutput("established");
+
+        try (Client onA = new Client(a.getPort(), CHANNEL); Client onB = new Client(b.getPort(), CHANNEL)) {
+            assertTrue(onA.isReady());
+            assertTrue(onB.isReady());
+            byte[] ping = "ping".getBytes(StandardCharsets.US_ASCII);
+            byte[] pong = "pong".getBytes(StandardCharsets.US_ASCII);
+            onA.send(ping);
+            assertArrayEquals(ping, onB.readFully(ping.length));
+            onB.send(pong);
+            assertArrayEquals(pong, onA.readFully(pong.length));
+        }
+    }
+
+    @Test
+    public void linkWithWrongSecretIsClosed() throws IOException {
+        int clusterPort = ServerProcess.freePort();
+        ServerProcess a = start("--cluster-port", Integer.toString(clusterPort), "--cluster-secret", SECRET);
+        ServerProcess b = start("--peer", "127.0.0.1:" + clusterPort, "--cluster-secret", "not-" + SECRET);
+        a.awaitOutput("sent the wrong secret");
+
+        try (Client onA = new Client(a.getPort(), CHANNEL); Client onB = new Client(b.getPort(), CHANNEL)) {
+            assertTrue(onA.isReady());
+            assertTrue(onB.isReady());
+            onB.send("ping".getBytes(StandardCharsets.US_ASCII));
+            assertTrue("Data crossed a link that presented the wrong secret", onA.isSilent(1000));
+        }
+    }
+
+    private ServerProcess start(String... args) throws IOException {
+        ServerProcess server = ServerProcess.start(ServerProcess.freePort(), args);
+        servers.add(server);
+        return server;
+    }
+}
@@ -0,0 +1,121 @@
+package ml.dent.connect;
+
+import ml.dent.ServerProcess;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that handshakes, including those that time out before authenticating, are handled by the event loops
+ * without starting a thread per connection
+ */
+public class AuthTimeoutThreadTest {
+
+    private static final int HANDSHAKES = 100_000;
+
+    /**
+     * Connections that never authenticate, opened at once so their timeouts fire together
+     */
+    private static final int IDLE = 1000;
+
+    private static final Pattern THREADS = Pattern.compile("Threads: (\\d+)");
+
+    private ServerProcess server;
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void handshakesStartNoThreads() throws IOException {
+        server = ServerProcess.start(ServerProcess.freePort(), "--auth-timeout", "1");
+        // Event loop threads start with their first channel, so every loop is busy before counting
+        for (int i = 0; i < 100; i++) {
+            authenticate(i);
+        }
+        timeOut(IDLE);
+        int before = threadCount();
+
+        for (int i = 0; i < HANDSHAKES - IDLE; i++) {
+            authenticate(i);
+        }
+        timeOut(IDLE);
+
+        assertEquals("Threads after " + HANDSHAKES + " handshakes", before, threadCount());
+    }
+
+    private int threadCount() throws IOException {
+        Matcher matcher = THREADS.matcher(server.query("stats", "Threads:"));
+        assertTrue(matcher.find());
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    /**
+     * Completes a handshake and drops the connection with a reset, so the client leaves no TIME_WAIT socket behind
+     */
+    private void authenticate(int i) throws IOException {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(("hi" + String.format("%04x", i % 4096)).getBytes(StandardCharsets.US_ASCII));
+            byte[] reply = new byte[5];
+            int read = 0;
+            while (read < reply.length) {
+                int count = socket.getInputStream().read(reply, read, reply.length - read);
+                assertTrue("Connection closed during handshake " + i, count >= 0);
+                read += count;
+            }
+            assertEquals("READY", new String(reply, StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Opens the given number of connections that never authenticate and waits until the server has closed them all
+     */
+    private void timeOut(int count) throws IOException {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets.add(connect());
+            }
+            for (Socket socket : sockets) {
+                InputStream in = socket.getInputStream();
+                while (in.read() >= 0) {
+                    // the timeout message
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * @return A connection whose version string has been read
+     */
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoLinger(true, 0);
+        socket.setSoTimeout(10_000);
+        InputStream in = socket.getInputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertTrue("Server closed the connection before sending its version", b >= 0);
+        }
+        return socket;
+    }
+}
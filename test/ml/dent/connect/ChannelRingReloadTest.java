@@ -0,0 +1,159 @@
+package ml.dent.connect;
+
+import ml.dent.ServerProcess;
+import ml.dent.ServerProcess.Client;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Grows a ring of two servers to three and reloads it, with every server in its own process on loopback
+ */
+public class ChannelRingReloadTest {
+
+    private static final int CHANNELS = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<ServerProcess> servers = new ArrayList<>();
+
+    @After
+    public void stopServers() {
+        for (ServerProcess server : servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void reloadOnlyRedirectsMovedChannels() throws IOException {
+        int[] ports = {ServerProcess.freePort(), ServerProcess.freePort(), ServerProcess.freePort()};
+        List<String> addresses = new ArrayList<>();
+        for (int port : ports) {
+            addresses.add("127.0.0.1:" + port);
+        }
+        Path ringFile = folder.newFile("ring.txt").toPath();
+        writeRing(ringFile, addresses.subList(0, 2));
+        ChannelRing before = new ChannelRing(addresses.subList(0, 2), null);
+        ChannelRing after = new ChannelRing(addresses, null);
+
+        ServerProcess a = start(ports[0], ringFile);
+        ServerProcess b = start(ports[1], ringFile);
+
+        // A pair already on a channel that is about to move keeps forwarding after the reload
+        int movingChannel = -1;
+        for (int channel = 0; channel < CHANNELS && movingChannel < 0; channel++) {
+            if (!after.ownerOf(channel).equals(before.ownerOf(channel))) {
+                movingChannel = channel;
+            }
+        }
+        assertTrue("Adding a server moves some channels", movingChannel >= 0);
+        Pair established = join(movingChannel, ports[0], ports[1]);
+
+        writeRing(ringFile, addresses);
+        ServerProcess c = start(ports[2], ringFile);
+        a.command("ring reload");
+        b.command("ring reload");
+        a.awaitOutput("Reloaded channel ring");
+        b.awaitOutput("Reloaded channel ring");
+
+        int moved = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            String oldOwner = before.ownerOf(channel);
+            String newOwner = after.ownerOf(channel);
+            try (Client client = new Client(portOf(oldOwner), channel)) {
+                if (newOwner.equals(oldOwner)) {
+                    assertTrue("Channel " + channel + " did not move but got " + client.getReply(), client.isReady());
+                } else {
+                    moved++;
+                    // Adding a server only moves channels to the new server
+                    assertEquals("Channel " + channel, c.getPort(), client.getRedirectPort());
+                }
+            }
+            Pair pair = join(channel, ports[0], ports[1]);
+            assertEquals("Channel " + channel, newOwner, "127.0.0.1:" + pair.port);
+            pair.close();
+        }
+        assertNotEquals("Some channels move to the new server", 0, moved);
+        assertNotEquals("Most channels stay where they are", CHANNELS, moved);
+
+        exchange(established.first, established.second);
+        established.close();
+    }
+
+    private ServerProcess start(int port, Path ringFile) throws IOException {
+        // Room for a probing client that may not have left yet when the next pair joins
+        ServerProcess server = ServerProcess.start(port, "--ring", ringFile.toString(), "--ring-self", "127.0.0.1:" + port,
+                "--max-connections", "8");
+        servers.add(server);
+        return server;
+    }
+
+    private static void writeRing(Path ringFile, List<String> addresses) throws IOException {
+        Files.write(ringFile, addresses, StandardCharsets.UTF_8);
+    }
+
+    private static int portOf(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Joins the channel from two clients that start at different servers and follow redirects, and checks that they
+     * met on one server and can exchange data
+     */
+    private static Pair join(int channel, int firstPort, int secondPort) throws IOException {
+        Pair pair = new Pair();
+        pair.first = follow(channel, firstPort);
+        pair.second = follow(channel, secondPort);
+        pair.port = pair.first.getPort();
+        assertEquals("Both clients of channel " + channel + " end up on the same server", pair.port, pair.second.getPort());
+        exchange(pair.first, pair.second);
+        return pair;
+    }
+
+    private static Client follow(int channel, int port) throws IOException {
+        Client client = new Client(port, channel);
+        if (client.getRedirectPort() >= 0) {
+            port = client.getRedirectPort();
+            client.close();
+            client = new Client(port, channel);
+        }
+        assertTrue("Channel " + channel + " on port " + port + " replied " + client.getReply(), client.isReady());
+        return client;
+    }
+
+    private static void exchange(Client first, Client second) throws IOException {
+        byte[] ping = "ping".getBytes(StandardCharsets.US_ASCII);
+        byte[] pong = "pong".getBytes(StandardCharsets.US_ASCII);
+        first.send(ping);
+        assertArrayEquals(ping, second.readFully(ping.length));
+        second.send(pong);
+        assertArrayEquals(pong, first.readFully(pong.length));
+    }
+
+    private static class Pair implements Closeable {
+        private Client first;
+        private Client second;
+        private int    port;
+
+        @Override
+        public void close() throws IOException {
+            first.close();
+            second.close();
+        }
+    }
+}